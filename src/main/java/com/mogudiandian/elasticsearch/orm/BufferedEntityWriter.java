@@ -0,0 +1,367 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mogudiandian.elasticsearch.orm.configuration.ElasticsearchOrmProperties;
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
+import com.mogudiandian.elasticsearch.orm.core.EntityMappingFinder;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 写缓冲
+ * 将多次、多线程的添加攒成一个批量请求 按条数、字节数、时间间隔任一条件满足时写入ES
+ * 缓冲中(包括写入中)的条数有上限 达到上限时添加会阻塞
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Slf4j
+public class BufferedEntityWriter implements AutoCloseable {
+
+    private final DefaultElasticsearchOrmClient client;
+
+    private final int maxActions;
+
+    private final long maxBytes;
+
+    private final long flushInterval;
+
+    private final long closeTimeout;
+
+    /**
+     * 是否合并同一文档的多次写入
+     */
+    private final boolean coalesce;
+
+    /**
+     * 被合并的写入次数
+     */
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * 容量许可 写入完成后才归还
+     */
+    private final Semaphore permits;
+
+    /**
+     * 定时写入
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 写入中的请求
+     */
+    private final Set<CompletableFuture<?>> inflight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 缓冲中的条目
+     */
+    private List<PendingItem> pending = new ArrayList<>();
+
+    /**
+     * 缓冲中的字节数
+     */
+    private long pendingBytes;
+
+    /**
+     * 索引名+ID -> 在缓冲中的位置 合并写入时使用
+     */
+    private Map<String, Integer> pendingPositions = new HashMap<>();
+
+    private volatile boolean closed;
+
+    BufferedEntityWriter(DefaultElasticsearchOrmClient client, ElasticsearchOrmProperties properties) {
+        this.client = client;
+        this.maxActions = Math.max(properties.getBufferMaxActions(), 1);
+        this.maxBytes = properties.getBufferMaxBytes();
+        this.flushInterval = properties.getBufferFlushInterval();
+        this.closeTimeout = properties.getUpdateTimeout();
+        this.coalesce = properties.isEnableWriteCoalescing();
+        this.permits = new Semaphore(Math.max(properties.getBufferCapacity(), this.maxActions));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("es-orm-buffer-flusher-%d").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 添加实体到缓冲 缓冲满时阻塞
+     * @param entity 实体
+     * @param <E> 实体类型
+     * @return document的future 实体写入ES后完成
+     */
+    public <E extends BaseEntity> CompletableFuture<Map<String, Object>> add(E entity) {
+        Objects.requireNonNull(entity, "实体不能为空");
+        if (closed) {
+            throw new IllegalStateException("buffered writer is closed");
+        }
+
+        EntityMapping<E> entityMapping = EntityMappingFinder.find((Class<E>) entity.getClass());
+        IndexRequest indexRequest = client.newIndexRequest(entity, entityMapping);
+        Map<String, Object> map = DefaultElasticsearchOrmClient.lazyDocument(entity, entityMapping);
+
+        // 变更检测 内容没有变化的实体不进入缓冲
+        ChangeDetector changeDetector = client.getChangeDetector();
+        long hash = 0;
+        long version = 0;
+        if (changeDetector != null) {
+            hash = ChangeDetector.hash(indexRequest.source());
+            if (changeDetector.isUnchanged(indexRequest.index(), indexRequest.id(), hash)) {
+                return CompletableFuture.completedFuture(map);
+            }
+            // 进入缓冲即清除记录 写入完成前同一文档的添加都不会被跳过
+            version = changeDetector.submit(indexRequest.index(), indexRequest.id());
+        }
+
+        PendingItem item = new PendingItem(entity, indexRequest, map, hash, version);
+        ReadYourWrites.markWritten(indexRequest.index(), item.future);
+        client.invalidateResultCache(indexRequest.index());
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for buffer capacity", e);
+        }
+
+        List<PendingItem> toFlush = null;
+        synchronized (this) {
+            // 关闭后不再接受 避免条目留在缓冲中
+            if (closed) {
+                permits.release();
+                throw new IllegalStateException("buffered writer is closed");
+            }
+            Integer position = coalesce ? pendingPositions.get(DefaultElasticsearchOrmClient.writeKey(indexRequest)) : null;
+            if (position != null) {
+                // 同一文档在窗口内只保留最新的版本 被替换的调用方得到最终的结果
+                PendingItem superseded = pending.set(position, item);
+                pendingBytes += indexRequest.source().length() - superseded.request.source().length();
+                item.future.whenComplete((x, e) -> {
+                    if (e != null) {
+                        superseded.future.completeExceptionally(e);
+                    } else {
+                        superseded.future.complete(x);
+                    }
+                });
+                coalesced.increment();
+                permits.release();
+            } else {
+                pending.add(item);
+                pendingBytes += indexRequest.source().length();
+                if (coalesce) {
+                    pendingPositions.put(DefaultElasticsearchOrmClient.writeKey(indexRequest), pending.size() - 1);
+                }
+            }
+            if (pending.size() >= maxActions || pendingBytes >= maxBytes) {
+                toFlush = drain();
+            }
+        }
+        if (toFlush != null) {
+            dispatch(toFlush);
+        }
+        return item.future;
+    }
+
+    /**
+     * 批量添加实体到缓冲 缓冲满时阻塞
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return 每个实体对应的future 顺序与实体一致
+     */
+    public <E extends BaseEntity> List<CompletableFuture<Map<String, Object>>> addAll(List<E> entities) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
+        List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            futures.add(add(entity));
+        }
+        return futures;
+    }
+
+    /**
+     * 立即将缓冲中的实体写入ES
+     * @return 本次写入的future
+     */
+    public CompletableFuture<Void> flush() {
+        List<PendingItem> toFlush;
+        synchronized (this) {
+            toFlush = drain();
+        }
+        return dispatch(toFlush);
+    }
+
+    /**
+     * 写入缓冲中剩余的实体并等待写入完成
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdown();
+        flush();
+        try {
+            CompletableFuture.allOf(inflight.toArray(new CompletableFuture[0])).get(closeTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("buffered writer close with unfinished requests, exception is: ", e);
+        }
+    }
+
+    /**
+     * 被合并的写入次数
+     * @return 次数
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("buffered writer flush error, exception is: ", e);
+        }
+    }
+
+    /**
+     * 取出缓冲中的条目 需要在锁内调用
+     * @return 缓冲中的条目
+     */
+    private List<PendingItem> drain() {
+        List<PendingItem> items = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        pendingPositions = new HashMap<>();
+        return items;
+    }
+
+    /**
+     * 发送批量请求并按条目完成future
+     * @param items 缓冲中的条目
+     * @return 本次写入的future
+     */
+    private CompletableFuture<Void> dispatch(List<PendingItem> items) {
+        if (items.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> future;
+        try {
+            BulkRequest request = client.newBulkRequest();
+            items.forEach(x -> request.add(x.request));
+            future = client.executeBulkWithRetryAsync(request, new AtomicInteger()).handle((responses, e) -> {
+                Throwable failure = e;
+                try {
+                    complete(items, responses, e);
+                    return null;
+                } catch (RuntimeException | Error ex) {
+                    failure = ex;
+                    throw ex;
+                } finally {
+                    completeRemaining(items, failure);
+                    permits.release(items.size());
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            completeRemaining(items, e);
+            permits.release(items.size());
+            throw e;
+        }
+        inflight.add(future);
+        future.whenComplete((x, e) -> inflight.remove(future));
+        return future;
+    }
+
+    /**
+     * 按批量写入的结果完成每个条目的future
+     * @param items 本次写入的条目
+     * @param responses 每个条目的响应 失败时为null
+     * @param e 整个批量请求的异常
+     */
+    private void complete(List<PendingItem> items, BulkItemResponse[] responses, Throwable e) {
+        items.stream().map(x -> x.request.index()).distinct().forEach(client::invalidateResultCache);
+        ChangeDetector changeDetector = client.getChangeDetector();
+        if (e != null) {
+            items.forEach(x -> {
+                if (changeDetector != null) {
+                    changeDetector.invalidate(x.request.index(), x.request.id());
+                }
+                x.future.completeExceptionally(e);
+            });
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            PendingItem item = items.get(i);
+            if (changeDetector != null) {
+                if (responses[i].isFailed()) {
+                    changeDetector.invalidate(item.request.index(), item.request.id());
+                } else {
+                    changeDetector.record(item.request.index(), item.request.id(), item.hash, item.version);
+                }
+            }
+            if (responses[i].isFailed()) {
+                item.future.completeExceptionally(new RuntimeException("add document to elastic search failure, message is: " + responses[i].getFailureMessage()));
+            } else {
+                DefaultElasticsearchOrmClient.fillSeqNo(item.entity, responses[i].getResponse().getSeqNo(), responses[i].getResponse().getPrimaryTerm());
+                item.future.complete(item.map);
+            }
+        }
+        log.debug("buffered writer flushed {} documents", items.size());
+    }
+
+    /**
+     * 处理中途出错时 还没有完成的future异常结束 避免调用方一直等待
+     * @param items 本次写入的条目
+     * @param failure 出错的原因 可以为null
+     */
+    private void completeRemaining(List<PendingItem> items, Throwable failure) {
+        for (PendingItem item : items) {
+            if (!item.future.isDone()) {
+                item.future.completeExceptionally(failure != null ? failure : new IllegalStateException("buffered write of document " + item.request.id() + " was not completed"));
+            }
+        }
+    }
+
+    /**
+     * 缓冲中的条目
+     */
+    private static class PendingItem {
+
+        private final BaseEntity entity;
+
+        private final IndexRequest request;
+
+        private final Map<String, Object> map;
+
+        /**
+         * 文档内容的hash 没有启用变更检测时为0
+         */
+        private final long hash;
+
+        /**
+         * 变更检测分配的写入序号 没有启用变更检测时为0
+         */
+        private final long version;
+
+        private final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+
+        private PendingItem(BaseEntity entity, IndexRequest request, Map<String, Object> map, long hash, long version) {
+            this.entity = entity;
+            this.request = request;
+            this.map = map;
+            this.hash = hash;
+            this.version = version;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
+import com.mogudiandian.elasticsearch.orm.core.EntityMappingFinder;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批量导入器 只在ElasticsearchOrmClient.bulkLoad的回调中使用
+ * 攒够一批后异步发送 同时发送的批次有上限 达到上限时添加会阻塞
+ * 不经过变更检测和写入合并 写入失败的条目计数 导入结束后统一报错
+ * @param <E> 实体类型
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Slf4j
+public class BulkLoader<E extends BaseEntity> {
+
+    private final DefaultElasticsearchOrmClient client;
+
+    private final EntityMapping<E> entityMapping;
+
+    private final int batchSize;
+
+    /**
+     * 同时发送的批次
+     */
+    private final Semaphore permits;
+
+    private final int maxInflight;
+
+    private final Set<CompletableFuture<?>> inflight = ConcurrentHashMap.newKeySet();
+
+    private List<E> batch = new ArrayList<>();
+
+    private final LongAdder loaded = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * 第一条失败信息
+     */
+    private volatile String firstFailure;
+
+    BulkLoader(DefaultElasticsearchOrmClient client, Class<E> entityClass, int batchSize, int maxInflight) {
+        this.client = client;
+        this.entityMapping = EntityMappingFinder.find(entityClass);
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxInflight = Math.max(maxInflight, 1);
+        this.permits = new Semaphore(this.maxInflight);
+    }
+
+    /**
+     * 添加实体 攒够一批时发送
+     * @param entity 实体
+     */
+    public void add(E entity) {
+        Objects.requireNonNull(entity, "实体不能为空");
+        batch.add(entity);
+        if (batch.size() >= batchSize) {
+            send();
+        }
+    }
+
+    /**
+     * 批量添加实体
+     * @param entities 实体集合
+     */
+    public void addAll(Collection<? extends E> entities) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
+        entities.forEach(this::add);
+    }
+
+    /**
+     * 写入成功的条数
+     * @return 条数
+     */
+    public long getLoaded() {
+        return loaded.sum();
+    }
+
+    /**
+     * 写入失败的条数
+     * @return 条数
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * 发送剩余的实体并等待所有批次完成
+     */
+    void finish() {
+        if (!batch.isEmpty()) {
+            send();
+        }
+        try {
+            permits.acquire(maxInflight);
+            permits.release(maxInflight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for bulk load", e);
+        }
+        if (getFailed() > 0) {
+            throw new RuntimeException("bulk load failure, " + getFailed() + " documents failed, first failure is: " + firstFailure);
+        }
+    }
+
+    /**
+     * 等待已经发送的批次完成 不抛异常 用于导入失败时
+     */
+    void awaitQuietly() {
+        CompletableFuture.allOf(inflight.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+    }
+
+    private void send() {
+        List<E> entities = batch;
+        batch = new ArrayList<>();
+
+        List<DocWriteRequest<?>> writes = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            writes.add(client.newIndexRequest(entity, entityMapping));
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for bulk load", e);
+        }
+
+        CompletableFuture<?> future = client.executeWritesAsync(entities, null, writes, RefreshPolicy.NONE).whenComplete((result, e) -> {
+            try {
+                if (e != null) {
+                    failed.add(entities.size());
+                    recordFailure(e.toString());
+                    return;
+                }
+                failed.add(result.getFailures().size());
+                loaded.add(entities.size() - result.getFailures().size());
+                if (result.hasFailures()) {
+                    recordFailure(result.getFailures().get(0).getMessage());
+                }
+            } finally {
+                permits.release();
+            }
+        });
+        inflight.add(future);
+        future.whenComplete((x, e) -> inflight.remove(future));
+    }
+
+    private void recordFailure(String message) {
+        if (firstFailure == null) {
+            firstFailure = message;
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 变更检测 记录每个文档最后一次写入成功的内容hash 内容没有变化的写入直接跳过
+ * 用数组实现的定长直接映射表 每个文档占28字节 索引名+ID的hash冲突时后写入的覆盖先写入的
+ * 有变化的写入发送时清除记录并分配序号 写入成功时只有序号仍是最新的才记录 避免先发送的写入后完成时记录旧的内容
+ * 跳过前同时比较索引名+ID的hash和单独的ID的hash 两个hash都冲突才会误判
+ * 只能感知经过本客户端的写入 在其他地方修改或删除的文档需要调用invalidate或clear
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class ChangeDetector {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.farmHashFingerprint64();
+
+    /**
+     * 索引名+ID的hash 0表示空
+     */
+    private final long[] keys;
+
+    /**
+     * 文档ID的hash 与keys用不同的hash函数
+     */
+    private final int[] ids;
+
+    /**
+     * 文档内容的hash
+     */
+    private final long[] hashes;
+
+    /**
+     * 最后一次发送的写入的序号
+     */
+    private final long[] versions;
+
+    /**
+     * 发送序号
+     */
+    private long sequence;
+
+    private final int mask;
+
+    /**
+     * 内容没有变化而跳过的次数
+     */
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * 内容有变化或没有记录而写入的次数
+     */
+    private final LongAdder changed = new LongAdder();
+
+    /**
+     * 因为表中位置冲突被覆盖的记录数
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    ChangeDetector(int maxSize) {
+        int capacity = Integer.highestOneBit(Math.max(maxSize, 2) - 1) << 1;
+        this.keys = new long[capacity];
+        this.ids = new int[capacity];
+        this.hashes = new long[capacity];
+        this.versions = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 计算文档内容的hash
+     * @param source 文档
+     * @return 64位hash
+     */
+    static long hash(BytesReference source) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        try {
+            BytesRefIterator iterator = source.iterator();
+            for (BytesRef ref = iterator.next(); ref != null; ref = iterator.next()) {
+                hasher.putBytes(ref.bytes, ref.offset, ref.length);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * 文档内容是否和最后一次写入成功的一致 同时记录计数
+     * @param indexName 索引名
+     * @param id 文档ID
+     * @param hash 文档内容的hash
+     * @return 一致返回true
+     */
+    boolean isUnchanged(String indexName, String id, long hash) {
+        long key = key(indexName, id);
+        int slot = (int) key & mask;
+        boolean unchanged;
+        synchronized (this) {
+            unchanged = keys[slot] == key && ids[slot] == id.hashCode() && hashes[slot] == hash;
+        }
+        (unchanged ? skipped : changed).increment();
+        return unchanged;
+    }
+
+    /**
+     * 发送有变化的写入 清除文档的记录 写入完成前同一文档的写入都不会被跳过
+     * @param indexName 索引名
+     * @param id 文档ID
+     * @return 本次写入的序号 写入成功后记录时使用
+     */
+    long submit(String indexName, String id) {
+        long key = key(indexName, id);
+        int slot = (int) key & mask;
+        synchronized (this) {
+            if (keys[slot] == key && ids[slot] == id.hashCode()) {
+                keys[slot] = 0;
+            }
+            versions[slot] = ++sequence;
+            return versions[slot];
+        }
+    }
+
+    /**
+     * 记录写入成功的文档内容 发送之后同一文档又有新的写入发送或记录被清除时不记录
+     * @param indexName 索引名
+     * @param id 文档ID
+     * @param hash 文档内容的hash
+     * @param version 发送时分配的序号
+     */
+    void record(String indexName, String id, long hash, long version) {
+        long key = key(indexName, id);
+        int slot = (int) key & mask;
+        synchronized (this) {
+            if (versions[slot] != version) {
+                return;
+            }
+            if (keys[slot] != 0 && keys[slot] != key) {
+                evictions.increment();
+            }
+            keys[slot] = key;
+            ids[slot] = id.hashCode();
+            hashes[slot] = hash;
+        }
+    }
+
+    /**
+     * 清除文档的记录 下一次写入不会被跳过 写入中的内容完成后也不再记录
+     * @param indexName 索引名
+     * @param id 文档ID
+     */
+    public void invalidate(String indexName, String id) {
+        long key = key(indexName, id);
+        int slot = (int) key & mask;
+        synchronized (this) {
+            if (keys[slot] == key && ids[slot] == id.hashCode()) {
+                keys[slot] = 0;
+            }
+            versions[slot] = ++sequence;
+        }
+    }
+
+    /**
+     * 清除所有记录
+     */
+    public synchronized void clear() {
+        Arrays.fill(keys, 0);
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public long getChanged() {
+        return changed.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 最多能记录的文档数
+     * @return 表的容量
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    private static long key(String indexName, String id) {
+        long key = HASH_FUNCTION.newHasher()
+                                .putUnencodedChars(indexName)
+                                .putChar('\0')
+                                .putUnencodedChars(id)
+                                .hash()
+                                .asLong();
+        // 0表示空
+        return key != 0 ? key : 1;
+    }
+
+}
@@ -5,29 +5,89 @@ import com.mogudiandian.elasticsearch.orm.datasource.ElasticsearchDatasourceDele
 import com.mogudiandian.elasticsearch.orm.configuration.ElasticsearchOrmProperties;
 import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
 import com.mogudiandian.elasticsearch.orm.core.EntityMappingFinder;
+import com.mogudiandian.elasticsearch.orm.core.EntityProperty;
+import com.mogudiandian.elasticsearch.orm.core.LazyDocument;
+import com.mogudiandian.elasticsearch.orm.core.util.CursorUtils;
 import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
 import com.mogudiandian.elasticsearch.orm.core.request.SearchRequest;
+import com.mogudiandian.elasticsearch.orm.core.request.api.ApiSearchRequest;
+import com.mogudiandian.elasticsearch.orm.core.response.BulkWriteResult;
+import com.mogudiandian.elasticsearch.orm.core.response.MultiSearchResult;
 import com.mogudiandian.elasticsearch.orm.core.response.SearchResult;
+import com.mogudiandian.elasticsearch.orm.core.response.StreamWriteResult;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.core.CountResponse;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchService;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.stream.IntStream;
 
 /**
  * 任务搜索client默认实现
@@ -40,152 +100,2000 @@ import java.util.stream.Collectors;
 @Component
 public class DefaultElasticsearchOrmClient implements ElasticsearchOrmClient {
 
+    /**
+     * 自定义回调线程池的bean名称
+     */
+    public static final String CALLBACK_EXECUTOR_BEAN_NAME = "elasticsearchOrmCallbackExecutor";
+
+    /**
+     * 可重试的条目状态 主要是ES队列满了拒绝写入(429)
+     */
+    private static final Set<RestStatus> RETRYABLE_STATUSES = EnumSet.of(RestStatus.TOO_MANY_REQUESTS, RestStatus.SERVICE_UNAVAILABLE, RestStatus.BAD_GATEWAY, RestStatus.GATEWAY_TIMEOUT);
+
+    /**
+     * 文档ID的元数据字段 用作翻页时排序的最后一个字段
+     */
+    private static final String ID_FIELD = "_id";
+
+    /**
+     * 脚本中对文档字段的引用 ctx._source.name 或 ctx._source['name']
+     */
+    private static final Pattern SCRIPT_SOURCE_FIELD = Pattern.compile("ctx\\._source\\.([A-Za-z_$][\\w$]*)|ctx\\._source\\[\\s*(['\"])([\\w$]+)\\2\\s*]");
+
+    /**
+     * 批量导入期间的索引设置 不刷新 不写副本
+     */
+    private static final Map<String, String> BULK_LOAD_SETTINGS = ImmutableMap.of("index.refresh_interval", "-1", "index.number_of_replicas", "0");
+
     @Autowired
     private ElasticsearchOrmProperties properties;
 
     @Autowired
     private ElasticsearchDatasourceDelegator elasticSearchDatasourceDelegator;
 
+    /**
+     * 异步回调的线程池 可以自定义名为 elasticsearchOrmCallbackExecutor 的bean
+     */
+    @Autowired(required = false)
+    @Qualifier(CALLBACK_EXECUTOR_BEAN_NAME)
+    private Executor callbackExecutor;
+
+    /**
+     * 回调线程池是否是自己创建的 自己创建的需要自己关闭
+     */
+    private boolean ownCallbackExecutor;
+
+    /**
+     * 批量写入重试的定时器
+     */
+    private ScheduledExecutorService retryScheduler;
+
+    /**
+     * 变更检测 没有启用时为空
+     */
+    private ChangeDetector changeDetector;
+
+    /**
+     * 搜索结果缓存 没有启用时为空
+     */
+    private ResultCache resultCache;
+
+    /**
+     * 写缓冲 第一次使用时创建
+     */
+    private volatile BufferedEntityWriter bufferedWriter;
+
+    @PostConstruct
+    public void init() {
+        if (callbackExecutor == null) {
+            callbackExecutor = Executors.newFixedThreadPool(Math.max(properties.getCallbackThreads(), 1),
+                    new ThreadFactoryBuilder().setNameFormat("es-orm-callback-%d").setDaemon(true).build());
+            ownCallbackExecutor = true;
+        }
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("es-orm-retry-%d").setDaemon(true).build());
+        if (properties.isEnableChangeDetection()) {
+            changeDetector = new ChangeDetector(properties.getChangeDetectionMaxSize());
+        }
+        if (properties.isEnableResultCache()) {
+            resultCache = new ResultCache(properties.getResultCacheMaxSize(), properties.getResultCacheTtl());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 先把缓冲中的数据刷到ES 再关闭回调线程池
+        if (bufferedWriter != null) {
+            bufferedWriter.close();
+        }
+        retryScheduler.shutdown();
+        if (ownCallbackExecutor) {
+            ((ExecutorService) callbackExecutor).shutdown();
+        }
+    }
+
     @Override
     public <E extends BaseEntity> Map<String, Object> add(E entity) {
+        return add(entity, properties.getRefreshPolicy());
+    }
+
+    @Override
+    public <E extends BaseEntity> Map<String, Object> add(E entity, RefreshPolicy refreshPolicy) {
         Objects.requireNonNull(entity, "实体不能为空");
 
-        // 获取内容类型和映射
-        EntityMapping<E> entityMapping = EntityMappingFinder.find((Class<E>) entity.getClass());
+        BulkWriteResult<E> result = join(addDocumentsAsync(Collections.singletonList(entity), refreshPolicy));
+        if (result.hasFailures()) {
+            throw new RuntimeException("add document to elastic search failure, message is: " + result.buildFailureMessage());
+        }
+        log.debug("add document to elastic search finished, retries={}, entity[{}] is: {}", result.getRetries(), entity.entityId(), entity);
 
-        // 将实体转换为map
-        Map<String, Object> map = entityMapping.convert(entity);
+        return result.getDocuments().get(0);
+    }
 
-        BulkRequest request = new BulkRequest();
-        request.timeout(TimeValue.timeValueMillis(properties.getUpdateTimeout()));
+    @Override
+    public <E extends BaseEntity> List<Map<String, Object>> addAll(List<E> entities) {
+        return addAll(entities, properties.getRefreshPolicy());
+    }
 
-        String indexName = OrmUtils.getIndexName(entity.getClass());
-        request.add(new IndexRequest(indexName).id(entity.entityId()).source(map));
+    @Override
+    public <E extends BaseEntity> List<Map<String, Object>> addAll(List<E> entities, RefreshPolicy refreshPolicy) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
 
-        RestStatus restStatus = addDocument(request);
-        log.debug("add document to elastic search index={} finished, status={}, entity[{}] is: {}", indexName, restStatus, entity.entityId(), entity);
+        BulkWriteResult<E> result = join(addDocumentsAsync(entities, refreshPolicy));
+        if (result.hasFailures()) {
+            throw new RuntimeException("add document to elastic search failure, message is: " + result.buildFailureMessage());
+        }
+        log.debug("add documents to elastic search finished, retries={}, entities are: {}", result.getRetries(), entities);
 
-        return map;
+        return result.getDocuments();
     }
 
     @Override
-    public <E extends BaseEntity> List<Map<String, Object>> addAll(List<E> entities) {
+    public <E extends BaseEntity> BulkWriteResult<E> tryAddAll(List<E> entities) {
+        return join(tryAddAllAsync(entities));
+    }
+
+    @Override
+    public <E extends BaseEntity> StreamWriteResult<E> addStream(Stream<E> entities) {
+        Objects.requireNonNull(entities, "实体流不能为空");
+        return addIterator(entities.iterator());
+    }
+
+    @Override
+    public <E extends BaseEntity> StreamWriteResult<E> addIterator(Iterator<E> entities) {
+        Objects.requireNonNull(entities, "实体迭代器不能为空");
+
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(properties.getBulkMaxActions(), 1);
+        int maxInflight = Math.max(properties.getBulkParallelism(), 1);
+        Semaphore permits = new Semaphore(maxInflight);
+        // 索引名+ID -> 包含这个文档的发送中的批次
+        Map<String, CompletableFuture<?>> inflightKeys = new ConcurrentHashMap<>();
+
+        StreamWriteResult<E> result = new StreamWriteResult<>();
+        long total = 0;
+        try {
+            List<E> batch = new ArrayList<>(batchSize);
+            while (entities.hasNext()) {
+                batch.add(entities.next());
+                if (batch.size() >= batchSize) {
+                    sendStreamBatch(batch, total, permits, inflightKeys, result);
+                    total += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                sendStreamBatch(batch, total, permits, inflightKeys, result);
+                total += batch.size();
+            }
+        } finally {
+            // 读取失败时也要等发送中的批次完成
+            permits.acquireUninterruptibly(maxInflight);
+        }
+
+        result.setTotal(total);
+        result.setTook(System.currentTimeMillis() - start);
+        if (result.hasFailures()) {
+            log.warn("add stream to elastic search finished with failures, result is: {}", result);
+        } else {
+            log.debug("add stream to elastic search finished, total={}, took={}ms", total, result.getTook());
+        }
+        return result;
+    }
+
+    /**
+     * 异步发送流中的一批实体 发送中的批次达到上限时阻塞
+     * 与发送中的批次有相同的文档时 等这些批次完成后再发送 同一文档按流中的顺序写入
+     * @param batch 一批实体
+     * @param offset 这一批在流中的起始位置
+     * @param permits 发送中批次的许可
+     * @param inflightKeys 索引名+ID -> 包含这个文档的发送中的批次
+     * @param result 写入统计
+     * @param <E> 实体类型
+     */
+    private <E extends BaseEntity> void sendStreamBatch(List<E> batch, long offset, Semaphore permits, Map<String, CompletableFuture<?>> inflightKeys, StreamWriteResult<E> result) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for stream batch", e);
+        }
+        Set<String> keys = new HashSet<>(batch.size());
+        CompletableFuture<BulkWriteResult<E>> future;
+        try {
+            batch.stream()
+                 .filter(x -> x.entityId() != null)
+                 .forEach(x -> keys.add(writeKey(OrmUtils.getIndexName(x.getClass()), x.entityId())));
+            CompletableFuture<?>[] conflicts = keys.stream()
+                                                   .map(inflightKeys::get)
+                                                   .filter(Objects::nonNull)
+                                                   .distinct()
+                                                   .toArray(CompletableFuture[]::new);
+            if (conflicts.length == 0) {
+                future = addDocumentsAsync(batch);
+            } else {
+                future = CompletableFuture.allOf(conflicts).handle((x, e) -> null).thenCompose(x -> addDocumentsAsync(batch));
+            }
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        keys.forEach(x -> inflightKeys.put(x, future));
+        future.whenComplete((batchResult, e) -> {
+            try {
+                keys.forEach(x -> inflightKeys.remove(x, future));
+                if (e != null) {
+                    result.fail(batch.size(), e);
+                } else {
+                    result.merge(offset, batch.size(), batchResult);
+                }
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public <E extends BaseEntity> CompletableFuture<Map<String, Object>> addAsync(E entity) {
+        Objects.requireNonNull(entity, "实体不能为空");
+
+        return addDocumentsAsync(Collections.singletonList(entity)).thenApply(result -> {
+            if (result.hasFailures()) {
+                throw new RuntimeException("add document to elastic search failure, message is: " + result.buildFailureMessage());
+            }
+            log.debug("add document to elastic search async finished, retries={}, entity[{}] is: {}", result.getRetries(), entity.entityId(), entity);
+            return result.getDocuments().get(0);
+        });
+    }
+
+    @Override
+    public <E extends BaseEntity> CompletableFuture<List<Map<String, Object>>> addAllAsync(List<E> entities) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
+
+        return addDocumentsAsync(entities).thenApply(result -> {
+            if (result.hasFailures()) {
+                throw new RuntimeException("add document to elastic search failure, message is: " + result.buildFailureMessage());
+            }
+            log.debug("add documents to elastic search async finished, retries={}, entities are: {}", result.getRetries(), entities);
+            return result.getDocuments();
+        });
+    }
+
+    @Override
+    public <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> tryAddAllAsync(List<E> entities) {
         Objects.requireNonNull(entities, "实体集合不能为空");
 
-        // 根据索引分组
-        Map<? extends Class<? extends BaseEntity>, List<E>> classGroup = entities.stream()
-                                                                                 .collect(Collectors.groupingBy(x -> x.getClass()));
+        return addDocumentsAsync(entities).whenComplete((result, e) -> {
+            if (result != null && result.hasFailures()) {
+                log.warn("add documents to elastic search finished with {} failures, retries={}", result.getFailures().size(), result.getRetries());
+            }
+        });
+    }
 
-        BulkRequest request = new BulkRequest();
-        request.timeout(TimeValue.timeValueMillis(properties.getUpdateTimeout()));
+    @Override
+    public <E extends BaseEntity> Map<String, Object> update(Class<E> entityClass, String id, Map<String, Object> properties) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        OrmUtils.requireNoRouting(entityClass);
+        return update(entityClass, id, null, properties);
+    }
+
+    @Override
+    public <E extends BaseEntity> Map<String, Object> update(Class<E> entityClass, String id, String routing, Map<String, Object> properties) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(id, "实体ID不能为空");
+        Objects.requireNonNull(properties, "属性不能为空");
+
+        Map<String, Object> map = EntityMappingFinder.find(entityClass).convertProperties(properties);
+        executeWrites(null, Collections.singletonList(map), Collections.singletonList(newUpdateRequest(entityClass, id).routing(routing).doc(map)));
+        return map;
+    }
+
+    @Override
+    public <E extends BaseEntity> Map<String, Object> update(E entity) {
+        Objects.requireNonNull(entity, "实体不能为空");
+        return updateAll(Collections.singletonList(entity)).get(0);
+    }
+
+    @Override
+    public <E extends BaseEntity> List<Map<String, Object>> updateAll(List<E> entities) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
 
         List<Map<String, Object>> maps = new ArrayList<>(entities.size());
+        List<DocWriteRequest<?>> writes = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            Map<String, Object> map = convertPartialEntity(entity);
+            writes.add(newUpdateRequest(entity.getClass(), entity.entityId()).routing(OrmUtils.getRouting(entity)).doc(map));
+            maps.add(map);
+        }
 
-        // 根据不同的组 添加到不同的索引
-        for (Map.Entry<? extends Class<? extends BaseEntity>, List<E>> entry : classGroup.entrySet()) {
-            Class<? extends BaseEntity> entityClass = entry.getKey();
-            String indexName = OrmUtils.getIndexName(entityClass);
-            EntityMapping<E> entityMapping = (EntityMapping<E>) EntityMappingFinder.find(entityClass);
-            for (E entity : entry.getValue()) {
-                Map<String, Object> map = entityMapping.convert(entity);
-                request.add(new IndexRequest(indexName).id(entity.entityId()).source(map));
-                maps.add(map);
-            }
+        return executeWrites(entities, maps, writes).getDocuments();
+    }
+
+    @Override
+    public <E extends BaseEntity> Map<String, Object> upsert(E entity) {
+        Objects.requireNonNull(entity, "实体不能为空");
+        return upsertAll(Collections.singletonList(entity)).get(0);
+    }
+
+    @Override
+    public <E extends BaseEntity> List<Map<String, Object>> upsertAll(List<E> entities) {
+        Objects.requireNonNull(entities, "实体集合不能为空");
+
+        List<Map<String, Object>> maps = new ArrayList<>(entities.size());
+        List<DocWriteRequest<?>> writes = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            Map<String, Object> map = convertEntity(entity);
+            // 文档不存在时插入 存在时合并 内容没变化时ES不会重新索引
+            writes.add(newUpdateRequest(entity.getClass(), entity.entityId()).routing(OrmUtils.getRouting(entity)).doc(map).docAsUpsert(true));
+            maps.add(map);
         }
 
-        RestStatus restStatus = addDocument(request);
-        log.debug("add documents to elastic search finished, status={}, entities are: {}", restStatus, entities);
+        return executeWrites(entities, maps, writes).getDocuments();
+    }
+
+    @Override
+    public <E extends BaseEntity> void updateByScript(Class<E> entityClass, String id, String script, Map<String, Object> params) {
+        Objects.requireNonNull(id, "实体ID不能为空");
+        updateAllByScript(entityClass, Collections.singletonList(id), script, params);
+    }
+
+    @Override
+    public <E extends BaseEntity> void updateByScript(Class<E> entityClass, String id, String routing, String script, Map<String, Object> params) {
+        Objects.requireNonNull(id, "实体ID不能为空");
+        updateAllByScript(entityClass, Collections.singletonMap(id, routing), script, params);
+    }
+
+    @Override
+    public <E extends BaseEntity> void updateAllByScript(Class<E> entityClass, Collection<String> ids, String script, Map<String, Object> params) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(ids, "实体ID集合不能为空");
+        OrmUtils.requireNoRouting(entityClass);
+
+        Map<String, String> idRoutings = new LinkedHashMap<>();
+        ids.forEach(id -> idRoutings.put(id, null));
+        updateAllByScript(entityClass, idRoutings, script, params);
+    }
+
+    @Override
+    public <E extends BaseEntity> void updateAllByScript(Class<E> entityClass, Map<String, String> idRoutings, String script, Map<String, Object> params) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(idRoutings, "实体ID集合不能为空");
+        Objects.requireNonNull(script, "脚本不能为空");
+
+        // 脚本中的属性名和参数值与写入文档时的规则一致
+        Script inlineScript = new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, encodeScript(entityClass, script), encodeScriptParams(entityClass, params));
+        List<DocWriteRequest<?>> writes = idRoutings.entrySet()
+                                                    .stream()
+                                                    .map(x -> newUpdateRequest(entityClass, x.getKey()).routing(x.getValue()).script(inlineScript))
+                                                    .collect(Collectors.toList());
+
+        executeWrites(null, null, writes);
+    }
+
+    @Override
+    public <E extends BaseEntity> boolean delete(Class<E> entityClass, String id) {
+        Objects.requireNonNull(id, "实体ID不能为空");
+        return deleteAll(entityClass, Collections.singletonList(id)).isEmpty();
+    }
+
+    @Override
+    public <E extends BaseEntity> boolean delete(Class<E> entityClass, String id, String routing) {
+        Objects.requireNonNull(id, "实体ID不能为空");
+        return deleteAll(entityClass, Collections.singletonMap(id, routing)).isEmpty();
+    }
+
+    @Override
+    public <E extends BaseEntity> List<String> deleteAll(Class<E> entityClass, Collection<String> ids) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(ids, "实体ID集合不能为空");
+        OrmUtils.requireNoRouting(entityClass);
+
+        Map<String, String> idRoutings = new LinkedHashMap<>();
+        ids.forEach(id -> idRoutings.put(id, null));
+        return deleteAll(entityClass, idRoutings);
+    }
+
+    @Override
+    public <E extends BaseEntity> List<String> deleteAll(Class<E> entityClass, Map<String, String> idRoutings) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(idRoutings, "实体ID集合不能为空");
+
+        String indexName = OrmUtils.getIndexName(entityClass);
+        List<DocWriteRequest<?>> writes = idRoutings.entrySet()
+                                                    .stream()
+                                                    .map(x -> new DeleteRequest(indexName, x.getKey()).routing(x.getValue()))
+                                                    .collect(Collectors.toList());
+
+        List<String> notFoundIds = executeWrites(null, null, writes).getNotFoundIds();
+        if (!notFoundIds.isEmpty()) {
+            log.warn("delete documents from index {} not found, ids are: {}", indexName, notFoundIds);
+        }
+        return notFoundIds;
+    }
 
-        return maps;
+    @Override
+    public long deleteByQuery(SearchRequest searchRequest) {
+        return deleteByQuery(searchRequest, properties.getDeleteByQuerySlices(), properties.getDeleteByQueryRequestsPerSecond());
     }
 
-    private RestStatus addDocument(BulkRequest request) {
+    @Override
+    public long deleteByQuery(SearchRequest searchRequest, int slices, Float requestsPerSecond) {
+        Objects.requireNonNull(searchRequest, "搜索条件不能为空");
+
+        String indexName = fillSearchContext(searchRequest);
+
+        EntityMapping<? extends BaseEntity> entityMapping = EntityMappingFinder.find(searchRequest.getEntityClass());
+
+        // 只使用搜索条件中的query 分页和排序不生效
+        SearchSourceBuilder sourceBuilder = searchRequest.toSearchSourceBuilder(entityMapping);
+
+        DeleteByQueryRequest request = new DeleteByQueryRequest(indexName);
+        request.setQuery(sourceBuilder.query());
+        if (searchRequest.getRoutings() != null && searchRequest.getRoutings().length > 0) {
+            request.setRouting(String.join(",", searchRequest.getRoutings()));
+        }
+        request.setBatchSize(properties.getDeleteByQueryBatchSize());
+        request.setSlices(slices);
+        if (requestsPerSecond != null) {
+            request.setRequestsPerSecond(requestsPerSecond);
+        }
+        request.setConflicts("proceed");
+        request.setTimeout(TimeValue.timeValueMillis(properties.getUpdateTimeout()));
+
+        ReadYourWrites.markWritten(indexName);
+        invalidateResultCache(indexName);
+        if (changeDetector != null) {
+            changeDetector.clear();
+        }
+
+        log.debug("delete by query condition is: {}", sourceBuilder.query());
+
         try {
             ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
-            BulkResponse response = datasource.bulk(request, RequestOptions.DEFAULT);
-            if (response.hasFailures()) {
-                throw new RuntimeException("add document to elastic search failure, message is: " + response.buildFailureMessage());
+            BulkByScrollResponse response = datasource.deleteByQuery(request, RequestOptions.DEFAULT);
+            invalidateResultCache(indexName);
+            if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty()) {
+                throw new RuntimeException("delete by query failure, bulk failures are: " + response.getBulkFailures() + ", search failures are: " + response.getSearchFailures());
             }
-            return response.status();
+            log.debug("delete by query from index={} finished, took={}, deleted={}, batches={}, versionConflicts={}, throttled={}",
+                    indexName, response.getTook(), response.getDeleted(), response.getBatches(), response.getVersionConflicts(), response.getStatus().getThrottled());
+            return response.getDeleted();
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
-            throw new RuntimeException("add document to elastic search error", e);
+            throw new RuntimeException("delete by query error", e);
         }
     }
 
     @Override
-    public <E extends BaseEntity> SearchResult<E> search(SearchRequest searchRequest) {
-
-        String indexName = OrmUtils.getIndexName(searchRequest.getEntityClass());
+    public <E extends BaseEntity> long bulkLoad(Class<E> entityClass, Consumer<BulkLoader<E>> consumer) {
+        return bulkLoad(entityClass, consumer, false);
+    }
 
-        // 填充request的上下文
-        searchRequest.setIndexName(indexName);
-        searchRequest.setDefaultDateFormat(properties.getDefaultDateFormat());
+    @Override
+    public <E extends BaseEntity> long bulkLoad(Class<E> entityClass, Consumer<BulkLoader<E>> consumer, boolean forceMerge) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(consumer, "导入回调不能为空");
 
-        EntityMapping<E> entityMapping = (EntityMapping<E>) EntityMappingFinder.find(searchRequest.getEntityClass());
+        String indexName = OrmUtils.getIndexName(entityClass);
+        ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
 
-        SearchSourceBuilder sourceBuilder = searchRequest.toSearchSourceBuilder(entityMapping);
+        // 导入的文档不经过变更检测 旧的记录不再可信
+        if (changeDetector != null) {
+            changeDetector.clear();
+        }
 
-        sourceBuilder.timeout(TimeValue.timeValueMillis(properties.getQueryTimeout()));
-        sourceBuilder.trackTotalHits(true);
+        // 实际索引名 -> 导入前显式设置的值 索引名可能是别名
+        Map<String, Settings> snapshots = new HashMap<>();
+        BulkLoader<E> loader = new BulkLoader<>(this, entityClass, properties.getBulkMaxActions(), properties.getBulkParallelism());
+        boolean succeeded = false;
+        try {
+            GetSettingsResponse settingsResponse = datasource.indices().getSettings(new GetSettingsRequest().indices(indexName).names(BULK_LOAD_SETTINGS.keySet().toArray(new String[0])), RequestOptions.DEFAULT);
+            for (ObjectObjectCursor<String, Settings> cursor : settingsResponse.getIndexToSettings()) {
+                snapshots.put(cursor.key, cursor.value);
+            }
+            // 没有实际索引时不能修改设置 否则会修改所有索引
+            if (snapshots.isEmpty()) {
+                throw new RuntimeException("No index found for " + indexName);
+            }
 
-        log.debug("query condition is: " + sourceBuilder.toString());
+            Settings.Builder builder = Settings.builder();
+            BULK_LOAD_SETTINGS.forEach(builder::put);
+            datasource.indices().putSettings(new UpdateSettingsRequest(snapshots.keySet().toArray(new String[0])).settings(builder), RequestOptions.DEFAULT);
+            log.info("bulk load into index {} started, original settings are: {}", indexName, snapshots);
 
-        org.elasticsearch.action.search.SearchRequest request = new org.elasticsearch.action.search.SearchRequest(new String[]{indexName}, sourceBuilder);
+            consumer.accept(loader);
+            loader.finish();
+            succeeded = true;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("bulk load into index " + indexName + " error", e);
+        } finally {
+            if (!succeeded) {
+                loader.awaitQuietly();
+            }
+            restoreSettings(datasource, snapshots, succeeded);
+        }
 
         try {
-            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
-            SearchResponse searchResponse = datasource.search(request, RequestOptions.DEFAULT);
+            datasource.indices().refresh(new RefreshRequest(indexName), RequestOptions.DEFAULT);
+            if (forceMerge) {
+                datasource.indices().forcemerge(new ForceMergeRequest(indexName).maxNumSegments(1), RequestOptions.DEFAULT);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("refresh index " + indexName + " after bulk load error", e);
+        }
+        log.info("bulk load into index {} finished, loaded={}", indexName, loader.getLoaded());
 
-            SearchHits searchHits = searchResponse.getHits();
-            long total = searchHits.getTotalHits().value;
+        return loader.getLoaded();
+    }
 
-            log.debug("hit record count is: "  + total);
-            if (searchRequest.getPagination() != null) {
-                log.debug("当前页数: " + searchRequest.getPagination().getPageNo());
-                log.debug("总页码数: " + (total + searchRequest.getPagination().getPageSize() - 1) / searchRequest.getPagination().getPageSize());
+    /**
+     * 恢复导入前的索引设置 导入前没有显式设置的恢复为默认值
+     * @param datasource 数据源
+     * @param snapshots 实际索引名 -> 导入前的设置
+     * @param rethrow 恢复失败时是否抛异常 导入本身失败时只记录日志 避免覆盖原始异常
+     */
+    private void restoreSettings(ElasticsearchDatasource datasource, Map<String, Settings> snapshots, boolean rethrow) {
+        for (Map.Entry<String, Settings> entry : snapshots.entrySet()) {
+            Settings.Builder builder = Settings.builder();
+            for (String name : BULK_LOAD_SETTINGS.keySet()) {
+                String value = entry.getValue().get(name);
+                if (value != null) {
+                    builder.put(name, value);
+                } else {
+                    builder.putNull(name);
+                }
             }
+            try {
+                datasource.indices().putSettings(new UpdateSettingsRequest(entry.getKey()).settings(builder), RequestOptions.DEFAULT);
+            } catch (Exception e) {
+                log.error("restore settings of index {} after bulk load error, settings are: {}", entry.getKey(), entry.getValue(), e);
+                if (rethrow) {
+                    throw new RuntimeException("restore settings of index " + entry.getKey() + " after bulk load error", e);
+                }
+            }
+        }
+    }
 
-            SearchResult<E> searchResult = new SearchResult<>();
-            if (searchRequest.getPagination() != null) {
-                searchResult.setCurrentPage(searchRequest.getPagination().getPageNo());
-                searchResult.setPageSize(searchRequest.getPagination().getPageSize());
-                searchResult.setTotalCount(total);
+    @Override
+    public ReadYourWrites readYourWrites() {
+        return ReadYourWrites.open();
+    }
+
+    @Override
+    public BufferedEntityWriter bufferedWriter() {
+        if (bufferedWriter == null) {
+            synchronized (this) {
+                if (bufferedWriter == null) {
+                    bufferedWriter = new BufferedEntityWriter(this, properties);
+                }
             }
+        }
+        return bufferedWriter;
+    }
 
-            SearchHit[] hits = searchHits.getHits();
-            for (SearchHit hit : hits) {
-                log.debug("文档ID: " + hit.getId());
-                log.debug("文档得分: " + hit.getScore());
-                log.debug("文档: " + hit.getSourceAsMap());
-
-                Map<String, Object> documentMap = hit.getSourceAsMap();
-
-                // 如果需要高亮 使用高亮后的替换掉原始的内容
-                if (searchRequest.getHighlight() != null) {
-                    Map<String, HighlightField> highlightFields = hit.getHighlightFields();
-                    for (Map.Entry<String, HighlightField> entry : highlightFields.entrySet()) {
-                        HighlightField highlightField = entry.getValue();
-                        if (highlightField != null && highlightField.fragments() != null) {
-                            String fragments = Arrays.stream(highlightField.fragments())
-                                                     .map(Text::string)
-                                                     .collect(Collectors.joining());
-                            documentMap.put(entry.getKey(), fragments);
-                        }
-                    }
+    /**
+     * 将实体转换为文档
+     * @param entity 实体
+     * @param <E> 实体类型
+     * @return 文档
+     */
+    <E extends BaseEntity> Map<String, Object> convertEntity(E entity) {
+        // 获取内容类型和映射
+        EntityMapping<E> entityMapping = EntityMappingFinder.find((Class<E>) entity.getClass());
+        return entityMapping.convert(entity);
+    }
+
+    /**
+     * 创建带超时时间的批量请求
+     * @return 批量请求
+     */
+    BulkRequest newBulkRequest() {
+        BulkRequest request = new BulkRequest();
+        request.timeout(TimeValue.timeValueMillis(properties.getUpdateTimeout()));
+        request.setRefreshPolicy(properties.getRefreshPolicy());
+        return request;
+    }
+
+    /**
+     * 将实体转换后切分成多个批量请求发送 失败的条目记录在结果中 使用默认的刷新策略
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return 写入结果的future
+     */
+    private <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> addDocumentsAsync(List<E> entities) {
+        return addDocumentsAsync(entities, properties.getRefreshPolicy());
+    }
+
+    /**
+     * 将实体转换后切分成多个批量请求发送 失败的条目记录在结果中
+     * @param entities 实体集合
+     * @param refreshPolicy 刷新策略
+     * @param <E> 实体类型
+     * @return 写入结果的future
+     */
+    private <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> addDocumentsAsync(List<E> entities, RefreshPolicy refreshPolicy) {
+        // 实体类型 -> 映射 同一类型只查找一次
+        Map<Class<? extends BaseEntity>, EntityMapping<E>> entityMappings = new HashMap<>();
+
+        List<Map<String, Object>> maps = new ArrayList<>(entities.size());
+        List<IndexRequest> writes = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            Class<? extends BaseEntity> entityClass = entity.getClass();
+            EntityMapping<E> entityMapping = entityMappings.computeIfAbsent(entityClass, x -> (EntityMapping<E>) EntityMappingFinder.find(x));
+
+            IndexRequest indexRequest = newIndexRequest(entity, entityMapping);
+            writes.add(indexRequest);
+            maps.add(lazyDocument(entity, entityMapping));
+        }
+
+        if (properties.isEnableWriteCoalescing()) {
+            return executeCoalescedWritesAsync(entities, maps, writes, refreshPolicy);
+        }
+        return executeIndexWritesAsync(entities, maps, writes, refreshPolicy);
+    }
+
+    /**
+     * 同一文档只发送最后一个版本 被合并的条目得到最后一个版本的结果
+     * @param entities 实体集合
+     * @param maps 实体对应的文档
+     * @param writes 实体对应的索引请求
+     * @param refreshPolicy 刷新策略
+     * @param <E> 实体类型
+     * @return 写入结果的future 失败条目的位置与实体集合一致
+     */
+    private <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> executeCoalescedWritesAsync(List<E> entities, List<Map<String, Object>> maps, List<IndexRequest> writes, RefreshPolicy refreshPolicy) {
+        // 每个条目对应的最后一个版本 在发送的条目中的位置
+        int[] latest = latestPositions(writes);
+        int count = Arrays.stream(latest).max().orElse(-1) + 1;
+        if (count == writes.size()) {
+            return executeIndexWritesAsync(entities, maps, writes, refreshPolicy);
+        }
+
+        // 发送的条目对应的原始位置 同一位置后出现的覆盖先出现的
+        int[] sources = new int[count];
+        for (int i = 0; i < writes.size(); i++) {
+            sources[latest[i]] = i;
+        }
+        List<E> latestEntities = new ArrayList<>(count);
+        List<Map<String, Object>> latestMaps = new ArrayList<>(count);
+        List<IndexRequest> latestWrites = new ArrayList<>(count);
+        for (int source : sources) {
+            latestEntities.add(entities.get(source));
+            latestMaps.add(maps.get(source));
+            latestWrites.add(writes.get(source));
+        }
+
+        return executeIndexWritesAsync(latestEntities, latestMaps, latestWrites, refreshPolicy).thenApply(latestResult -> {
+            List<Map<String, Object>> documents = new ArrayList<>(writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                documents.add(latestMaps.get(latest[i]));
+            }
+            BulkWriteResult<E> result = new BulkWriteResult<>(documents);
+            Map<Integer, BulkWriteResult.FailedItem<E>> failures = latestResult.getFailures()
+                                                                               .stream()
+                                                                               .collect(Collectors.toMap(BulkWriteResult.FailedItem::getIndex, x -> x));
+            for (int i = 0; i < writes.size(); i++) {
+                BulkWriteResult.FailedItem<E> failure = failures.get(latest[i]);
+                if (failure != null) {
+                    result.addFailure(i, entities.get(i), failure.getId(), failure.getStatus(), failure.getMessage());
                 }
+            }
+            result.setRetries(latestResult.getRetries());
+            result.setSkipped(latestResult.getSkipped());
+            result.setCoalesced(writes.size() - latestWrites.size());
+            return result;
+        });
+    }
+
+    /**
+     * 合并同一文档的多次写入 只保留最后一次 保留的条目按最后一次出现的顺序排列
+     * @param writes 写请求
+     * @return 每个写请求对应的保留条目的位置
+     */
+    static int[] latestPositions(List<? extends DocWriteRequest<?>> writes) {
+        // 索引名+ID -> 最后一次出现的位置
+        Map<String, Integer> lastOccurrences = new HashMap<>();
+        for (int i = 0; i < writes.size(); i++) {
+            lastOccurrences.put(writeKey(writes.get(i)), i);
+        }
+
+        // 索引名+ID -> 保留条目的位置
+        Map<String, Integer> positions = new HashMap<>(lastOccurrences.size());
+        for (int i = 0; i < writes.size(); i++) {
+            String key = writeKey(writes.get(i));
+            if (lastOccurrences.get(key) == i) {
+                positions.put(key, positions.size());
+            }
+        }
+
+        int[] latest = new int[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            latest[i] = positions.get(writeKey(writes.get(i)));
+        }
+        return latest;
+    }
+
+    /**
+     * 发送索引请求 启用变更检测时只发送内容有变化的
+     * @param entities 实体集合
+     * @param maps 实体对应的文档
+     * @param writes 实体对应的索引请求
+     * @param refreshPolicy 刷新策略
+     * @param <E> 实体类型
+     * @return 写入结果的future
+     */
+    private <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> executeIndexWritesAsync(List<E> entities, List<Map<String, Object>> maps, List<IndexRequest> writes, RefreshPolicy refreshPolicy) {
+        if (changeDetector != null) {
+            return executeChangedWritesAsync(entities, maps, writes, refreshPolicy);
+        }
+        return executeWritesAsync(entities, maps, new ArrayList<>(writes), refreshPolicy);
+    }
 
-                E entity = entityMapping.convert(documentMap);
+    /**
+     * 写请求对应文档的唯一标识
+     * @param write 写请求
+     * @return 索引名+ID
+     */
+    static String writeKey(DocWriteRequest<?> write) {
+        return writeKey(write.index(), write.id());
+    }
+
+    /**
+     * 文档的唯一标识
+     * @param index 索引名
+     * @param id 文档ID
+     * @return 索引名+ID
+     */
+    static String writeKey(String index, String id) {
+        return index + '\0' + id;
+    }
 
-                searchResult.addRecord(entity, hit.getScore());
+    /**
+     * 只发送内容有变化的索引请求 写入成功后记录内容的hash 失败时清除记录
+     * 同一文档的多次写入只用最后一次判断 没有变化时全部跳过 有变化时全部按顺序发送
+     * @param entities 实体集合
+     * @param maps 实体对应的文档
+     * @param writes 实体对应的索引请求
+     * @param refreshPolicy 刷新策略
+     * @param <E> 实体类型
+     * @return 写入结果的future 失败条目的位置与实体集合一致
+     */
+    private <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> executeChangedWritesAsync(List<E> entities, List<Map<String, Object>> maps, List<IndexRequest> writes, RefreshPolicy refreshPolicy) {
+        // 每个条目对应的同一文档最后一次写入的位置
+        int[] latest = latestOccurrences(writes);
+        boolean[] changed = new boolean[writes.size()];
+        long[] hashes = new long[writes.size()];
+        long[] versions = new long[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            IndexRequest write = writes.get(i);
+            if (latest[i] == i) {
+                hashes[i] = ChangeDetector.hash(write.source());
+                if (!changeDetector.isUnchanged(write.index(), write.id(), hashes[i])) {
+                    changed[i] = true;
+                    versions[i] = changeDetector.submit(write.index(), write.id());
+                }
             }
+        }
+
+        // 有变化的条目在实体集合中的位置
+        List<Integer> positions = IntStream.range(0, writes.size()).filter(x -> changed[latest[x]]).boxed().collect(Collectors.toList());
+        List<E> changedEntities = positions.stream().map(entities::get).collect(Collectors.toList());
+        List<Map<String, Object>> changedMaps = positions.stream().map(maps::get).collect(Collectors.toList());
+        List<DocWriteRequest<?>> changedWrites = positions.stream().map(writes::get).collect(Collectors.toList());
 
-            if (searchRequest.isDebug()) {
-                searchResult.setQueryString(sourceBuilder.toString());
+        return executeWritesAsync(changedEntities, changedMaps, changedWrites, refreshPolicy).whenComplete((changedResult, e) -> {
+            if (e != null) {
+                changedWrites.forEach(x -> changeDetector.invalidate(x.index(), x.id()));
+            }
+        }).thenApply(changedResult -> {
+            BulkWriteResult<E> result = new BulkWriteResult<>(maps);
+            boolean[] failed = new boolean[writes.size()];
+            for (BulkWriteResult.FailedItem<E> failure : changedResult.getFailures()) {
+                int position = positions.get(failure.getIndex());
+                failed[position] = true;
+                result.addFailure(position, failure.getEntity(), failure.getId(), failure.getStatus(), failure.getMessage());
+            }
+            // 最后一次写入决定文档的内容 失败的条目可能已经部分写入 不能保留旧的记录
+            for (int i = 0; i < writes.size(); i++) {
+                if (!changed[i]) {
+                    continue;
+                }
+                IndexRequest write = writes.get(i);
+                if (failed[i]) {
+                    changeDetector.invalidate(write.index(), write.id());
+                } else {
+                    changeDetector.record(write.index(), write.id(), hashes[i], versions[i]);
+                }
             }
+            result.setRetries(changedResult.getRetries());
+            result.setSkipped(entities.size() - changedWrites.size());
+            return result;
+        });
+    }
 
-            return searchResult;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * 创建实体的索引请求 实体直接序列化为字节 实体有版本属性时由ES校验版本
+     * @param entity 实体
+     * @param entityMapping 实体的映射
+     * @param <E> 实体类型
+     * @return 索引请求
+     */
+    <E extends BaseEntity> IndexRequest newIndexRequest(E entity, EntityMapping<E> entityMapping) {
+        Class<? extends BaseEntity> entityClass = entity.getClass();
+        IndexRequest request = new IndexRequest(OrmUtils.getIndexName(entityClass)).id(entity.entityId()).routing(OrmUtils.getRouting(entity)).source(entityMapping.toSource(entity), XContentType.JSON);
+
+        EntityProperty versionProperty = OrmUtils.getVersionProperty(entityClass);
+        if (versionProperty == null) {
+            return request;
+        }
+        Long version = (Long) versionProperty.invokeGetter(entity);
+        if (version == null) {
+            return request;
+        }
+        switch (versionProperty.getVersion().value()) {
+            case EXTERNAL:
+                request.version(version).versionType(VersionType.EXTERNAL);
+                break;
+            case EXTERNAL_GTE:
+                request.version(version).versionType(VersionType.EXTERNAL_GTE);
+                break;
+            case SEQ_NO:
+                // 新实体的primary_term为空或0 不校验
+                Long primaryTerm = (Long) OrmUtils.getPrimaryTermProperty(entityClass).invokeGetter(entity);
+                if (primaryTerm != null && primaryTerm > 0) {
+                    request.setIfSeqNo(version).setIfPrimaryTerm(primaryTerm);
+                }
+                break;
+            default:
+                break;
+        }
+        return request;
+    }
+
+    /**
+     * 实体对应的文档 调用方第一次访问时才由实体转换 值的类型与转换的Map一致
+     * @param entity 实体
+     * @param entityMapping 实体的映射
+     * @param <E> 实体类型
+     * @return 文档
+     */
+    static <E extends BaseEntity> Map<String, Object> lazyDocument(E entity, EntityMapping<E> entityMapping) {
+        return new LazyDocument(() -> entityMapping.convert(entity));
+    }
+
+    /**
+     * 写入成功后将ES返回的seq_no和primary_term回填到实体 以便下一次写入
+     * @param entity 实体
+     * @param seqNo seq_no
+     * @param primaryTerm primary_term
+     */
+    static void fillSeqNo(BaseEntity entity, long seqNo, long primaryTerm) {
+        EntityProperty primaryTermProperty = OrmUtils.getPrimaryTermProperty(entity.getClass());
+        if (primaryTermProperty == null || seqNo < 0) {
+            return;
+        }
+        OrmUtils.getVersionProperty(entity.getClass()).invokeSetter(entity, seqNo);
+        primaryTermProperty.invokeSetter(entity, primaryTerm);
+    }
+
+    /**
+     * 将非空属性转换为局部文档
+     * @param entity 实体
+     * @param <E> 实体类型
+     * @return 局部文档
+     */
+    private <E extends BaseEntity> Map<String, Object> convertPartialEntity(E entity) {
+        Map<String, Object> properties = new HashMap<>();
+        for (EntityProperty property : OrmUtils.getEntityProperties(entity.getClass())) {
+            Object value = property.invokeGetter(entity);
+            if (value != null) {
+                properties.put(property.getName(), value);
+            }
+        }
+        return EntityMappingFinder.find((Class<E>) entity.getClass()).convertProperties(properties);
+    }
+
+    /**
+     * 创建更新请求
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @return 更新请求
+     */
+    private UpdateRequest newUpdateRequest(Class<? extends BaseEntity> entityClass, String id) {
+        return new UpdateRequest(OrmUtils.getIndexName(entityClass), id).retryOnConflict(properties.getUpdateRetryOnConflict());
+    }
+
+    /**
+     * 将脚本中ctx._source.属性名 和 ctx._source['属性名'] 替换为ES中的字段名
+     * @param entityClass 实体类型
+     * @param script 脚本
+     * @return 替换后的脚本
+     */
+    static String encodeScript(Class<? extends BaseEntity> entityClass, String script) {
+        Matcher matcher = SCRIPT_SOURCE_FIELD.matcher(script);
+        StringBuffer buffer = new StringBuffer(script.length());
+        while (matcher.find()) {
+            String replacement;
+            if (matcher.group(1) != null) {
+                replacement = "ctx._source." + OrmUtils.getEntityFieldName(entityClass, matcher.group(1));
+            } else {
+                replacement = "ctx._source[" + matcher.group(2) + OrmUtils.getEntityFieldName(entityClass, matcher.group(3)) + matcher.group(2) + "]";
+            }
+            matcher.appendReplacement(buffer, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * 将脚本参数中与属性同名的参数值转换为文档中的值 例如生命周期属性转换为毫秒数 参数名不变
+     * @param entityClass 实体类型
+     * @param params 脚本参数
+     * @return 转换后的参数
+     */
+    private Map<String, Object> encodeScriptParams(Class<? extends BaseEntity> entityClass, Map<String, Object> params) {
+        if (params == null || params.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> converted = EntityMappingFinder.find(entityClass).convertProperties(params);
+        Map<String, Object> encoded = new HashMap<>(params.size());
+        params.forEach((name, value) -> {
+            String fieldName = OrmUtils.getEntityFieldName(entityClass, name);
+            encoded.put(name, converted.containsKey(fieldName) ? converted.get(fieldName) : value);
+        });
+        return encoded;
+    }
+
+    /**
+     * 发送写请求 失败时抛异常
+     * @param entities 写请求对应的实体 没有实体时为空
+     * @param maps 写请求对应的文档
+     * @param writes 写请求
+     * @param <E> 实体类型
+     * @return 写入结果
+     */
+    private <E extends BaseEntity> BulkWriteResult<E> executeWrites(List<E> entities, List<Map<String, Object>> maps, List<DocWriteRequest<?>> writes) {
+        BulkWriteResult<E> result = join(executeWritesAsync(entities, maps, writes, properties.getRefreshPolicy()));
+        if (result.hasFailures()) {
+            throw new RuntimeException("write document to elastic search failure, message is: " + result.buildFailureMessage());
+        }
+        log.debug("write {} documents to elastic search finished, retries={}", writes.size(), result.getRetries());
+        return result;
+    }
+
+    /**
+     * 将写请求切分成多个批量请求发送 失败的条目记录在结果中
+     * @param entities 写请求对应的实体 没有实体时为空
+     * @param maps 写请求对应的文档
+     * @param writes 写请求
+     * @param refreshPolicy 刷新策略
+     * @param <E> 实体类型
+     * @return 写入结果的future
+     */
+    <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> executeWritesAsync(List<E> entities, List<Map<String, Object>> maps, List<DocWriteRequest<?>> writes, RefreshPolicy refreshPolicy) {
+        List<BulkChunk> chunks = partitionBulkRequests(writes, refreshPolicy);
+
+        Set<String> indexNames = writes.stream().map(DocWriteRequest::index).collect(Collectors.toSet());
+        indexNames.forEach(this::invalidateResultCache);
+
+        // 更新和删除会改变文档内容 变更检测的记录失效
+        if (changeDetector != null) {
+            writes.stream()
+                  .filter(x -> !(x instanceof IndexRequest))
+                  .forEach(x -> changeDetector.invalidate(x.index(), x.id()));
+        }
+
+        AtomicInteger retries = new AtomicInteger();
+        List<BulkRequest> requests = chunks.stream().map(x -> x.request).collect(Collectors.toList());
+        CompletableFuture<BulkWriteResult<E>> future = executeBulksAsync(requests, retries).thenApply(itemResponses -> {
+            // 写入前后都失效 避免写入期间的查询缓存旧结果
+            indexNames.forEach(this::invalidateResultCache);
+            BulkWriteResult<E> result = new BulkWriteResult<>(maps);
+            for (int i = 0; i < chunks.size(); i++) {
+                BulkItemResponse[] items = itemResponses.get(i);
+                List<Integer> positions = chunks.get(i).positions;
+                for (int j = 0; j < items.length; j++) {
+                    int index = positions.get(j);
+                    BulkItemResponse item = items[j];
+                    if (item.isFailed()) {
+                        result.addFailure(index, entities != null ? entities.get(index) : null, item.getId(), item.status(), item.getFailureMessage());
+                    } else if (item.getResponse().getResult() == DocWriteResponse.Result.NOT_FOUND) {
+                        result.addNotFound(item.getId());
+                    } else if (entities != null) {
+                        fillSeqNo(entities.get(index), item.getResponse().getSeqNo(), item.getResponse().getPrimaryTerm());
+                    }
+                }
+            }
+            // 同一文档的条目可能不在原来的批量请求中 失败条目按位置排序
+            result.getFailures().sort(Comparator.comparingInt(BulkWriteResult.FailedItem::getIndex));
+            result.setRetries(retries.get());
+            return result;
+        });
+        // 读己之写 搜索前等待写入完成再刷新
+        indexNames.forEach(x -> ReadYourWrites.markWritten(x, future));
+        return future;
+    }
+
+    /**
+     * 按条数和字节数将写请求切分成多个批量请求
+     * 同一文档的多次写入放在同一个批量请求中 由ES按先后顺序执行 这个批量请求可能超过条数和字节数的上限
+     * @param writes 写请求
+     * @param refreshPolicy 刷新策略
+     * @return 批量请求集合
+     */
+    List<BulkChunk> partitionBulkRequests(List<DocWriteRequest<?>> writes, RefreshPolicy refreshPolicy) {
+        int maxActions = Math.max(properties.getBulkMaxActions(), 1);
+        long maxBytes = properties.getBulkMaxBytes();
+
+        List<BulkChunk> chunks = new ArrayList<>();
+        // 索引名+ID -> 所在的批量请求
+        Map<String, BulkChunk> keyChunks = new HashMap<>();
+        BulkChunk chunk = null;
+        for (int i = 0; i < writes.size(); i++) {
+            DocWriteRequest<?> write = writes.get(i);
+            BulkChunk target = write.id() != null ? keyChunks.get(writeKey(write)) : null;
+            if (target == null) {
+                // 条数或字节数超过上限时切分出新的批量请求
+                if (chunk == null
+                        || chunk.request.numberOfActions() >= maxActions
+                        || chunk.request.estimatedSizeInBytes() + estimateSize(write) > maxBytes) {
+                    chunk = new BulkChunk(newBulkRequest());
+                    chunk.request.setRefreshPolicy(refreshPolicy);
+                    chunks.add(chunk);
+                }
+                target = chunk;
+                if (write.id() != null) {
+                    keyChunks.put(writeKey(write), target);
+                }
+            }
+            target.request.add(write);
+            target.positions.add(i);
+        }
+        return chunks;
+    }
+
+    /**
+     * 估算写请求的字节数
+     * @param write 写请求
+     * @return 字节数
+     */
+    private static long estimateSize(DocWriteRequest<?> write) {
+        if (write instanceof IndexRequest) {
+            return ((IndexRequest) write).source().length();
+        }
+        if (write instanceof UpdateRequest) {
+            UpdateRequest update = (UpdateRequest) write;
+            long size = 0;
+            if (update.doc() != null) {
+                size += update.doc().source().length();
+            }
+            if (update.upsertRequest() != null) {
+                size += update.upsertRequest().source().length();
+            }
+            if (update.script() != null) {
+                size += update.script().getIdOrCode().length();
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * 异步并行发送多个批量请求 同时最多有 bulkParallelism 个请求在发送中
+     * @param requests 批量请求集合
+     * @param retries 重试的条目数
+     * @return 每个批量请求的条目响应 顺序与请求一致
+     */
+    private CompletableFuture<List<BulkItemResponse[]>> executeBulksAsync(List<BulkRequest> requests, AtomicInteger retries) {
+        BulkItemResponse[][] responses = new BulkItemResponse[requests.size()][];
+        AtomicInteger next = new AtomicInteger();
+
+        // 每条通道发完一个再取下一个
+        int lanes = Math.min(Math.max(properties.getBulkParallelism(), 1), requests.size());
+        CompletableFuture<?>[] futures = new CompletableFuture[lanes];
+        for (int i = 0; i < lanes; i++) {
+            futures[i] = executeBulkLane(requests, responses, next, retries);
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(x -> Arrays.asList(responses));
+    }
+
+    private CompletableFuture<Void> executeBulkLane(List<BulkRequest> requests, BulkItemResponse[][] responses, AtomicInteger next, AtomicInteger retries) {
+        int index = next.getAndIncrement();
+        if (index >= requests.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return executeBulkWithRetryAsync(requests.get(index), retries).thenCompose(items -> {
+            responses[index] = items;
+            return executeBulkLane(requests, responses, next, retries);
+        });
+    }
+
+    /**
+     * 异步发送批量请求 只重试被拒绝等可重试的条目 重试间隔指数增长并加随机抖动
+     * 请求中同一文档后面还有写入时 前面的条目不重试 避免旧的版本覆盖后面的写入 它得到最后一次写入的响应
+     * @param request 批量请求
+     * @param retries 重试的条目数
+     * @return 每个条目最终的响应 顺序与请求一致 整个请求失败时转换为每个条目失败
+     */
+    CompletableFuture<BulkItemResponse[]> executeBulkWithRetryAsync(BulkRequest request, AtomicInteger retries) {
+        BulkItemResponse[] results = new BulkItemResponse[request.numberOfActions()];
+        int[] positions = IntStream.range(0, results.length).toArray();
+        int[] latest = latestOccurrences(request.requests());
+        return executeBulkWithRetryAsync(request, positions, results, latest, 0, retries).thenApply(x -> {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = results[latest[i]];
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * 每个写请求对应的同一文档最后一次写入的位置
+     * @param writes 写请求
+     * @return 最后一次写入的位置 没有ID的写请求为自身的位置
+     */
+    static int[] latestOccurrences(List<? extends DocWriteRequest<?>> writes) {
+        // 索引名+ID -> 最后一次出现的位置
+        Map<String, Integer> lastOccurrences = new HashMap<>();
+        for (int i = 0; i < writes.size(); i++) {
+            if (writes.get(i).id() != null) {
+                lastOccurrences.put(writeKey(writes.get(i)), i);
+            }
+        }
+        int[] latest = new int[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            latest[i] = writes.get(i).id() != null ? lastOccurrences.get(writeKey(writes.get(i))) : i;
+        }
+        return latest;
+    }
+
+    /**
+     * 发送批量请求 将可重试的条目组成新的批量请求延迟后再发送
+     * @param request 本次发送的批量请求
+     * @param positions 本次请求中的条目在原始请求中的位置
+     * @param results 原始请求中每个条目的响应
+     * @param latest 原始请求中每个条目对应的同一文档最后一次写入的位置
+     * @param attempt 已经重试的次数
+     * @param retries 重试的条目数
+     * @return 每个条目最终的响应
+     */
+    private CompletableFuture<BulkItemResponse[]> executeBulkWithRetryAsync(BulkRequest request, int[] positions, BulkItemResponse[] results, int[] latest, int attempt, AtomicInteger retries) {
+        if (positions.length == 0) {
+            return CompletableFuture.completedFuture(results);
+        }
+        boolean retryable = attempt < properties.getBulkMaxRetries();
+        List<DocWriteRequest<?>> itemRequests = request.requests();
+        return executeBulkAsync(request).handle((response, e) -> {
+            List<Integer> retryItems = new ArrayList<>();
+            if (e != null) {
+                // 整个请求失败 按状态决定全部重试还是全部失败
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                Throwable rootCause = cause.getCause() != null ? cause.getCause() : cause;
+                RestStatus status = ExceptionsHelper.status(rootCause);
+                Exception exception = rootCause instanceof Exception ? (Exception) rootCause : new RuntimeException(rootCause);
+                for (int i = 0; i < positions.length; i++) {
+                    if (retryable && RETRYABLE_STATUSES.contains(status)) {
+                        if (latest[positions[i]] == positions[i]) {
+                            retryItems.add(i);
+                        }
+                    } else {
+                        DocWriteRequest<?> itemRequest = itemRequests.get(i);
+                        BulkItemResponse.Failure failure = new BulkItemResponse.Failure(itemRequest.index(), itemRequest.type(), itemRequest.id(), exception, status);
+                        results[positions[i]] = new BulkItemResponse(i, itemRequest.opType(), failure);
+                    }
+                }
+            } else {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed() && retryable && RETRYABLE_STATUSES.contains(item.status())) {
+                        // 被后面的写入覆盖的条目不重试 最后得到后面写入的响应
+                        if (latest[positions[item.getItemId()]] == positions[item.getItemId()]) {
+                            retryItems.add(item.getItemId());
+                        }
+                    } else {
+                        results[positions[item.getItemId()]] = item;
+                    }
+                }
+            }
+            return retryItems;
+        }).thenCompose(retryItems -> {
+            if (retryItems.isEmpty()) {
+                return CompletableFuture.completedFuture(results);
+            }
+
+            // 只重试可重试的条目
+            BulkRequest retryRequest = newBulkRequest();
+            retryRequest.setRefreshPolicy(request.getRefreshPolicy());
+            int[] retryPositions = new int[retryItems.size()];
+            for (int i = 0; i < retryItems.size(); i++) {
+                retryRequest.add(itemRequests.get(retryItems.get(i)));
+                retryPositions[i] = positions[retryItems.get(i)];
+            }
+            retries.addAndGet(retryItems.size());
+
+            long backoff = retryBackoff(attempt);
+            log.debug("retry {} bulk items after {}ms, attempt={}", retryItems.size(), backoff, attempt + 1);
+            return delay(backoff).thenCompose(x -> executeBulkWithRetryAsync(retryRequest, retryPositions, results, latest, attempt + 1, retries));
+        });
+    }
+
+    /**
+     * 计算重试间隔 指数增长到上限后 在后一半区间内随机
+     * @param attempt 已经重试的次数
+     * @return 毫秒
+     */
+    private long retryBackoff(int attempt) {
+        long backoff = Math.min(properties.getBulkRetryMaxBackoff(), properties.getBulkRetryBackoff() << Math.min(attempt, 30));
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    /**
+     * 延迟完成的future
+     * @param millis 毫秒
+     * @return future
+     */
+    private CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            retryScheduler.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            future.complete(null);
+        }
+        return future;
+    }
+
+    /**
+     * 等待future完成 将CompletionException还原
+     * @param future future
+     * @param <T> 结果类型
+     * @return 结果
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 异步发送批量请求 响应在回调线程池中处理 避免占用ES客户端的IO线程
+     * @param request 批量请求
+     * @return 批量响应的future 不检查单条失败
+     */
+    CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+        CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+        try {
+            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
+            datasource.bulkAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    executeCallback(future, () -> future.complete(response));
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    executeCallback(future, () -> future.completeExceptionally(new RuntimeException("add document to elastic search error", e)));
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(new RuntimeException("add document to elastic search error", e));
+        }
+        return future;
+    }
+
+    /**
+     * 在回调线程池中执行回调 线程池拒绝时直接在当前线程执行
+     * @param future 回调对应的future
+     * @param callback 回调
+     */
+    private void executeCallback(CompletableFuture<?> future, Runnable callback) {
+        try {
+            callbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            log.warn("callback executor rejected, run callback in current thread");
+            try {
+                callback.run();
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    @Override
+    public <E extends BaseEntity> E get(Class<E> entityClass, String id) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(id, "实体ID不能为空");
+
+        // 不知道路由时GET只会查一个分片 改为按ID搜索所有分片
+        if (OrmUtils.hasRouting(entityClass)) {
+            List<E> entities = searchByIds(entityClass, Collections.singletonList(id));
+            return entities.isEmpty() ? null : entities.get(0);
+        }
+        return get(entityClass, id, null);
+    }
+
+    @Override
+    public <E extends BaseEntity> E get(Class<E> entityClass, String id, String routing) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(id, "实体ID不能为空");
+
+        EntityMapping<E> entityMapping = EntityMappingFinder.find(entityClass);
+        GetResponse response;
+        try {
+            response = elasticSearchDatasourceDelegator.delegate().get(new GetRequest(OrmUtils.getIndexName(entityClass), id).routing(routing), RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return convertGetResponse(entityClass, entityMapping, response);
+    }
+
+    @Override
+    public <E extends BaseEntity> List<E> multiGet(Class<E> entityClass, Collection<String> ids) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(ids, "实体ID集合不能为空");
+
+        // 不知道路由时按ID搜索所有分片
+        if (OrmUtils.hasRouting(entityClass)) {
+            return searchByIds(entityClass, ids);
+        }
+        Map<String, String> idRoutings = new LinkedHashMap<>();
+        ids.forEach(id -> idRoutings.put(id, null));
+        return multiGet(entityClass, idRoutings);
+    }
+
+    @Override
+    public <E extends BaseEntity> List<E> multiGet(Class<E> entityClass, Map<String, String> idRoutings) {
+        Objects.requireNonNull(entityClass, "实体类型不能为空");
+        Objects.requireNonNull(idRoutings, "实体ID集合不能为空");
+
+        String indexName = OrmUtils.getIndexName(entityClass);
+        EntityMapping<E> entityMapping = EntityMappingFinder.find(entityClass);
+        List<E> entities = new ArrayList<>(idRoutings.size());
+
+        // ID太多时分批查询
+        for (List<Map.Entry<String, String>> chunk : Iterables.partition(idRoutings.entrySet(), Math.max(properties.getMultiGetBatchSize(), 1))) {
+            MultiGetRequest request = new MultiGetRequest();
+            chunk.forEach(x -> request.add(new MultiGetRequest.Item(indexName, x.getKey()).routing(x.getValue())));
+
+            MultiGetResponse response;
+            try {
+                response = elasticSearchDatasourceDelegator.delegate().mget(request, RequestOptions.DEFAULT);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+
+            for (MultiGetItemResponse item : response.getResponses()) {
+                if (item.isFailed()) {
+                    throw new RuntimeException("get document " + item.getId() + " from elastic search failure, message is: " + item.getFailure().getMessage());
+                }
+                E entity = convertGetResponse(entityClass, entityMapping, item.getResponse());
+                if (entity != null) {
+                    entities.add(entity);
+                }
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * 按ID搜索所有分片 用于不知道路由的实体 不是实时读取
+     * @param entityClass 实体类型
+     * @param ids 实体ID集合
+     * @param <E> 实体类型
+     * @return 存在的实体 顺序与ID一致
+     */
+    private <E extends BaseEntity> List<E> searchByIds(Class<E> entityClass, Collection<String> ids) {
+        String indexName = OrmUtils.getIndexName(entityClass);
+        EntityMapping<E> entityMapping = EntityMappingFinder.find(entityClass);
+        boolean seqNoAndPrimaryTerm = OrmUtils.getPrimaryTermProperty(entityClass) != null;
+        Map<String, E> found = new HashMap<>();
+
+        try {
+            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
+            refreshIfWritten(datasource, indexName);
+            for (List<String> chunk : Iterables.partition(ids, Math.max(properties.getMultiGetBatchSize(), 1))) {
+                SearchSourceBuilder sourceBuilder = new SearchSourceBuilder().query(QueryBuilders.boolQuery()
+                                                                                                 .filter(QueryBuilders.idsQuery().addIds(chunk.toArray(new String[0])))
+                                                                                                 .filter(QueryBuilders.termQuery(BaseEntity.CLAZZ, entityClass.getName())))
+                                                                             .size(chunk.size())
+                                                                             .seqNoAndPrimaryTerm(seqNoAndPrimaryTerm)
+                                                                             .timeout(TimeValue.timeValueMillis(properties.getQueryTimeout()));
+                SearchResponse response = datasource.search(new org.elasticsearch.action.search.SearchRequest(new String[]{indexName}, sourceBuilder), RequestOptions.DEFAULT);
+                for (SearchHit hit : response.getHits().getHits()) {
+                    E entity = entityMapping.convert(hit.getSourceRef());
+                    if (seqNoAndPrimaryTerm) {
+                        fillSeqNo(entity, hit.getSeqNo(), hit.getPrimaryTerm());
+                    }
+                    found.put(hit.getId(), entity);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        return ids.stream().map(found::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public <E extends BaseEntity> SearchResult<E> search(SearchRequest searchRequest) {
+        PreparedSearch<E> prepared = prepareSearch(searchRequest, null);
+        try {
+            return toSearchResult(prepared, executeSearch(prepared));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <P> SearchResult<P> search(SearchRequest searchRequest, Class<P> projectionClass) {
+        Objects.requireNonNull(projectionClass, "投影类不能为空");
+
+        PreparedSearch<BaseEntity> prepared = prepareSearch(searchRequest, projectionClass);
+        try {
+            return toSearchResult(prepared, executeSearch(prepared));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long count(SearchRequest searchRequest) {
+        Objects.requireNonNull(searchRequest, "搜索条件不能为空");
+
+        String indexName = fillSearchContext(searchRequest);
+
+        EntityMapping<? extends BaseEntity> entityMapping = EntityMappingFinder.find(searchRequest.getEntityClass());
+
+        // 只用查询条件 不取命中
+        CountRequest request = new CountRequest(indexName).query(searchRequest.toSearchSourceBuilder(entityMapping).query());
+        if (searchRequest.getRoutings() != null && searchRequest.getRoutings().length > 0) {
+            request.routing(searchRequest.getRoutings());
+        }
+        if (searchRequest.getPreference() != null) {
+            request.preference(searchRequest.getPreference());
+        }
+
+        log.debug("count condition is: " + request.query());
+
+        try {
+            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
+            refreshIfWritten(datasource, indexName);
+            CountResponse response = datasource.count(request, RequestOptions.DEFAULT);
+            return response.getCount();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <E extends BaseEntity> CompletableFuture<SearchResult<E>> searchAsync(SearchRequest searchRequest) {
+        return searchAsync(searchRequest, callbackExecutor);
+    }
+
+    @Override
+    public <E extends BaseEntity> CompletableFuture<SearchResult<E>> searchAsync(SearchRequest searchRequest, Executor executor) {
+        Objects.requireNonNull(executor, "线程池不能为空");
+
+        PreparedSearch<E> prepared = prepareSearch(searchRequest, null);
+
+        // 读己之写的刷新也是异步的 不阻塞调用线程
+        CompletableFuture<Void> refreshFuture = refreshIfWrittenAsync(searchRequest.getIndexName());
+
+        String cacheKey = resultCache != null && searchRequest.isCacheEnabled() ? resultCache.key(prepared.request) : null;
+        SearchResponse cached = cacheKey != null && refreshFuture.isDone() ? resultCache.get(cacheKey) : null;
+        if (cached != null) {
+            return CompletableFuture.supplyAsync(() -> toSearchResult(prepared, cached), executor);
+        }
+
+        // 刷新后才发出的查询 取消时要单独取消 取消后才发出的查询立即取消
+        AtomicReference<CompletableFuture<SearchResponse>> searchFuture = new AtomicReference<>();
+        CompletableFuture<SearchResponse> responseFuture = refreshFuture.isDone() ? executeSearchAsync(prepared.request) : refreshFuture.thenCompose(x -> {
+            CompletableFuture<SearchResponse> search = executeSearchAsync(prepared.request);
+            if (!searchFuture.compareAndSet(null, search)) {
+                search.cancel(true);
+            }
+            return search;
+        });
+        CompletableFuture<SearchResult<E>> future = responseFuture.thenApplyAsync(response -> {
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, response);
+            }
+            return toSearchResult(prepared, response);
+        }, executor);
+        // 取消结果时取消HTTP请求
+        future.whenComplete((x, e) -> {
+            if (future.isCancelled()) {
+                responseFuture.cancel(true);
+                CompletableFuture<SearchResponse> search = searchFuture.getAndSet(responseFuture);
+                if (search != null) {
+                    search.cancel(true);
+                }
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public MultiSearchResult multiSearch(List<SearchRequest> searchRequests) {
+        Objects.requireNonNull(searchRequests, "搜索条件集合不能为空");
+
+        MultiSearchResult multiSearchResult = new MultiSearchResult(searchRequests.size());
+        if (searchRequests.isEmpty()) {
+            return multiSearchResult;
+        }
+
+        List<PreparedSearch<BaseEntity>> preparedSearches = new ArrayList<>(searchRequests.size());
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+        for (SearchRequest searchRequest : searchRequests) {
+            PreparedSearch<BaseEntity> prepared = prepareSearch(searchRequest, null);
+            preparedSearches.add(prepared);
+            multiSearchRequest.add(prepared.request);
+        }
+
+        MultiSearchResponse multiSearchResponse;
+        try {
+            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
+            for (String indexName : searchRequests.stream().map(SearchRequest::getIndexName).collect(Collectors.toSet())) {
+                refreshIfWritten(datasource, indexName);
+            }
+            multiSearchResponse = elasticSearchDatasourceDelegator.delegate().msearch(multiSearchRequest, RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        // 单个请求失败不影响其它请求的结果
+        MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].isFailure()) {
+                log.warn("multi search request [{}] failure, message is: {}", i, responses[i].getFailureMessage());
+                multiSearchResult.addFailure(responses[i].getFailureMessage());
+                continue;
+            }
+            try {
+                multiSearchResult.addResult(toSearchResult(preparedSearches.get(i), responses[i].getResponse()));
+            } catch (Exception e) {
+                log.warn("multi search request [{}] convert failure, exception is: ", i, e);
+                multiSearchResult.addFailure(ExceptionsHelper.unwrapCause(e).toString());
+            }
+        }
+        return multiSearchResult;
+    }
+
+    /**
+     * 执行查询 搜索条件启用缓存时先查缓存
+     * @param prepared 准备好的查询
+     * @return 查询响应
+     */
+    private SearchResponse executeSearch(PreparedSearch<?> prepared) throws IOException {
+        refreshIfWritten(elasticSearchDatasourceDelegator.delegate(), prepared.searchRequest.getIndexName());
+
+        String cacheKey = resultCache != null && prepared.searchRequest.isCacheEnabled() ? resultCache.key(prepared.request) : null;
+        if (cacheKey != null) {
+            SearchResponse cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                log.debug("search result cache hit");
+                return cached;
+            }
+        }
+
+        SearchResponse searchResponse = elasticSearchDatasourceDelegator.delegate().search(prepared.request, RequestOptions.DEFAULT);
+        if (cacheKey != null) {
+            resultCache.put(cacheKey, searchResponse);
+        }
+        return searchResponse;
+    }
+
+    /**
+     * 索引有写入 使搜索结果缓存失效
+     * @param indexName 索引名
+     */
+    void invalidateResultCache(String indexName) {
+        if (resultCache != null) {
+            resultCache.invalidate(indexName);
+        }
+    }
+
+    /**
+     * 生成ES的查询请求 当前线程写过索引时先刷新
+     * @param searchRequest 搜索条件
+     * @param projectionClass 投影类 查询实体时为空
+     * @param <E> 实体类型
+     * @return 准备好的查询
+     */
+    private <E extends BaseEntity> PreparedSearch<E> prepareSearch(SearchRequest searchRequest, Class<?> projectionClass) {
+        String indexName = fillSearchContext(searchRequest);
+
+        EntityMapping<E> entityMapping = (EntityMapping<E>) EntityMappingFinder.find(searchRequest.getEntityClass());
+
+        SearchSourceBuilder sourceBuilder = searchRequest.toSearchSourceBuilder(entityMapping);
+
+        // 投影只返回投影类的字段
+        if (projectionClass != null) {
+            String[] includes = OrmUtils.getProjectionProperties(searchRequest.getEntityClass(), projectionClass)
+                                        .stream()
+                                        .map(x -> OrmUtils.getEntityFieldName(searchRequest.getEntityClass(), x))
+                                        .toArray(String[]::new);
+            sourceBuilder.fetchSource(includes, null);
+        }
+
+        sourceBuilder.timeout(TimeValue.timeValueMillis(properties.getQueryTimeout()));
+        sourceBuilder.trackTotalHitsUpTo(searchRequest.getTrackTotalHitsUpTo() != null ? searchRequest.getTrackTotalHitsUpTo() : properties.getTrackTotalHitsUpTo());
+
+        // 游标翻页 从上一页最后一条之后开始 用_id保证排序唯一
+        if (searchRequest.isCursorEnabled()) {
+            sourceBuilder.from(0);
+            sourceBuilder.sort(SortBuilders.fieldSort(ID_FIELD).order(SortOrder.ASC));
+            if (searchRequest.getCursor() != null) {
+                sourceBuilder.searchAfter(CursorUtils.decode(searchRequest.getCursor()));
+            }
+        }
+
+        // 乐观锁的实体需要返回seq_no和primary_term
+        boolean seqNoAndPrimaryTerm = projectionClass == null && OrmUtils.getPrimaryTermProperty(searchRequest.getEntityClass()) != null;
+        if (seqNoAndPrimaryTerm) {
+            sourceBuilder.seqNoAndPrimaryTerm(true);
+        }
+
+        log.debug("query condition is: " + sourceBuilder.toString());
+
+        return new PreparedSearch<>(searchRequest, entityMapping, projectionClass, sourceBuilder, newSearchRequest(searchRequest, sourceBuilder), seqNoAndPrimaryTerm);
+    }
+
+    /**
+     * 将ES的查询响应转换为搜索结果
+     * @param prepared 准备好的查询
+     * @param searchResponse 查询响应
+     * @param <R> 实体或投影类型
+     * @return 搜索结果
+     */
+    private <R> SearchResult<R> toSearchResult(PreparedSearch<?> prepared, SearchResponse searchResponse) {
+        SearchRequest searchRequest = prepared.searchRequest;
+        SearchSourceBuilder sourceBuilder = prepared.sourceBuilder;
+
+        SearchHits searchHits = searchResponse.getHits();
+        // 不统计时为空 超过统计上限时是下限
+        TotalHits totalHits = searchHits.getTotalHits();
+        Long total = totalHits != null ? totalHits.value : null;
+        boolean lowerBound = totalHits != null && totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+
+        log.debug("hit record count is: " + (lowerBound ? ">= " : "") + total);
+        if (searchRequest.getPagination() != null) {
+            log.debug("当前页数: " + searchRequest.getPagination().getPageNo());
+            if (total != null) {
+                log.debug("总页码数: " + (total + searchRequest.getPagination().getPageSize() - 1) / searchRequest.getPagination().getPageSize());
+            }
+        }
+
+        SearchResult<R> searchResult = new SearchResult<>();
+        if (searchRequest.getPagination() != null) {
+            searchResult.setCurrentPage(searchRequest.getPagination().getPageNo());
+            searchResult.setPageSize(searchRequest.getPagination().getPageSize());
+            searchResult.setTotalCount(total);
+            searchResult.setTotalCountLowerBound(lowerBound);
+        }
+
+        SearchHit[] hits = searchHits.getHits();
+        for (SearchHit hit : hits) {
+            // 不开启debug时不解析文档
+            if (log.isDebugEnabled()) {
+                log.debug("文档ID: " + hit.getId());
+                log.debug("文档得分: " + hit.getScore());
+                log.debug("文档: " + hit.getSourceAsString());
+            }
+
+            Object record;
+            if (prepared.projectionClass != null) {
+                record = prepared.entityMapping.convert(hitSource(searchRequest, hit), prepared.projectionClass);
+            } else {
+                record = convertHit(searchRequest, prepared.entityMapping, hit, prepared.seqNoAndPrimaryTerm);
+            }
+
+            searchResult.addRecord((R) record, hit.getScore());
+        }
+
+        if (searchRequest instanceof ApiSearchRequest) {
+            searchResult.setAggregations(((ApiSearchRequest) searchRequest).toAggregationResults(searchResponse.getAggregations()));
+        }
+
+        // 满一页时才可能有下一页
+        int pageSize = sourceBuilder.size() >= 0 ? sourceBuilder.size() : SearchService.DEFAULT_SIZE;
+        if (searchRequest.isCursorEnabled() && hits.length > 0 && hits.length >= pageSize) {
+            searchResult.setNextCursor(CursorUtils.encode(hits[hits.length - 1].getSortValues()));
+        }
+
+        if (searchRequest.isDebug()) {
+            searchResult.setQueryString(sourceBuilder.toString());
+        }
+
+        return searchResult;
+    }
+
+    /**
+     * 流式查询 按ID排序的search_after逐页获取 不统计总数
+     * @param searchRequest 搜索条件
+     * @param <E> 实体类型
+     * @return 实体流 用完需要关闭
+     */
+    @Override
+    public <E extends BaseEntity> Stream<E> stream(SearchRequest searchRequest) {
+        String indexName = fillSearchContext(searchRequest);
+
+        EntityMapping<E> entityMapping = (EntityMapping<E>) EntityMappingFinder.find(searchRequest.getEntityClass());
+
+        SearchSourceBuilder sourceBuilder = searchRequest.toSearchSourceBuilder(entityMapping);
+
+        // 分页由search_after代替 每页的条数优先用分页设置
+        int pageSize = searchRequest.getPagination() != null ? searchRequest.getPagination().getPageSize() : properties.getStreamPageSize();
+        sourceBuilder.from(0).size(Math.max(pageSize, 1));
+        sourceBuilder.sort(SortBuilders.fieldSort(ID_FIELD).order(SortOrder.ASC));
+        sourceBuilder.timeout(TimeValue.timeValueMillis(properties.getQueryTimeout()));
+        sourceBuilder.trackTotalHits(false);
+
+        boolean seqNoAndPrimaryTerm = OrmUtils.getPrimaryTermProperty(searchRequest.getEntityClass()) != null;
+        if (seqNoAndPrimaryTerm) {
+            sourceBuilder.seqNoAndPrimaryTerm(true);
+        }
+
+        log.debug("stream query condition is: {}", sourceBuilder);
+
+        try {
+            refreshIfWritten(elasticSearchDatasourceDelegator.delegate(), indexName);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        SearchAfterIterator<E> iterator = new SearchAfterIterator<>(this, newSearchRequest(searchRequest, sourceBuilder), hit -> convertHit(searchRequest, entityMapping, hit, seqNoAndPrimaryTerm));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(iterator::close);
+    }
+
+    /**
+     * 异步查询 响应在回调线程池中处理 取消future时取消查询
+     * @param request 查询请求
+     * @return 查询响应的future
+     */
+    CompletableFuture<SearchResponse> executeSearchAsync(org.elasticsearch.action.search.SearchRequest request) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        try {
+            ElasticsearchDatasource datasource = elasticSearchDatasourceDelegator.delegate();
+            Cancellable cancellable = datasource.searchAsync(request, RequestOptions.DEFAULT, new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    executeCallback(future, () -> future.complete(response));
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    executeCallback(future, () -> future.completeExceptionally(new RuntimeException("search from elastic search error", e)));
+                }
+            });
+            future.whenComplete((x, e) -> {
+                if (future.isCancelled()) {
+                    cancellable.cancel();
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(new RuntimeException("search from elastic search error", e));
+        }
+        return future;
+    }
+
+    /**
+     * 创建ES的查询请求
+     * @param searchRequest 搜索条件 已经填充了上下文
+     * @param sourceBuilder 搜索条件生成的查询
+     * @return 查询请求
+     */
+    private org.elasticsearch.action.search.SearchRequest newSearchRequest(SearchRequest searchRequest, SearchSourceBuilder sourceBuilder) {
+        org.elasticsearch.action.search.SearchRequest request = new org.elasticsearch.action.search.SearchRequest(new String[]{searchRequest.getIndexName()}, sourceBuilder);
+        if (searchRequest.getRoutings() != null && searchRequest.getRoutings().length > 0) {
+            request.routing(searchRequest.getRoutings());
+        }
+        if (searchRequest.getPreference() != null) {
+            request.preference(searchRequest.getPreference());
+        }
+        if (searchRequest.getRequestCache() != null) {
+            request.requestCache(searchRequest.getRequestCache());
+        }
+        return request;
+    }
+
+    /**
+     * 读己之写 当前线程写过索引时等待写入完成后刷新一次
+     * @param datasource 数据源
+     * @param indexName 索引名
+     */
+    private void refreshIfWritten(ElasticsearchDatasource datasource, String indexName) throws IOException {
+        CompletableFuture<?> writes = ReadYourWrites.consumeWritten(indexName);
+        if (writes != null) {
+            // 写入失败也要刷新 已经成功的部分需要可见
+            writes.handle((x, e) -> null).join();
+            datasource.indices().refresh(new RefreshRequest(indexName), RequestOptions.DEFAULT);
+            log.debug("refresh index {} before search for read-your-writes", indexName);
+        }
+    }
+
+    /**
+     * 异步的读己之写 当前线程写过索引时写入完成后异步刷新一次
+     * @param indexName 索引名
+     * @return 刷新的future 不需要刷新时是已完成的
+     */
+    private CompletableFuture<Void> refreshIfWrittenAsync(String indexName) {
+        CompletableFuture<?> writes = ReadYourWrites.consumeWritten(indexName);
+        if (writes == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return writes.handle((x, e) -> null).thenCompose(x -> refreshAsync(indexName));
+    }
+
+    /**
+     * 异步刷新索引
+     * @param indexName 索引名
+     * @return 刷新的future
+     */
+    CompletableFuture<Void> refreshAsync(String indexName) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            elasticSearchDatasourceDelegator.delegate().indices().refreshAsync(new RefreshRequest(indexName), RequestOptions.DEFAULT, new ActionListener<RefreshResponse>() {
+                @Override
+                public void onResponse(RefreshResponse response) {
+                    log.debug("refresh index {} before search for read-your-writes", indexName);
+                    future.complete(null);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    future.completeExceptionally(new RuntimeException("refresh index " + indexName + " error", e));
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(new RuntimeException("refresh index " + indexName + " error", e));
+        }
+        return future;
+    }
+
+    /**
+     * 将命中转换为实体
+     * @param searchRequest 搜索条件
+     * @param entityMapping 实体映射
+     * @param hit 命中
+     * @param seqNoAndPrimaryTerm 是否回填seq_no和primary_term
+     * @param <E> 实体类型
+     * @return 实体
+     */
+    private <E extends BaseEntity> E convertHit(SearchRequest searchRequest, EntityMapping<E> entityMapping, SearchHit hit, boolean seqNoAndPrimaryTerm) {
+        // 不需要高亮时直接从文档字节转换
+        E entity;
+        if (searchRequest.getHighlight() == null && hit.getSourceRef() != null) {
+            entity = entityMapping.convert(hit.getSourceRef());
+        } else {
+            entity = entityMapping.convert(hitSource(searchRequest, hit));
+        }
+        if (seqNoAndPrimaryTerm) {
+            fillSeqNo(entity, hit.getSeqNo(), hit.getPrimaryTerm());
+        }
+        return entity;
+    }
+
+    /**
+     * 获取命中的文档 需要高亮时替换为高亮后的内容
+     * @param searchRequest 搜索条件
+     * @param hit 命中
+     * @return 文档
+     */
+    private Map<String, Object> hitSource(SearchRequest searchRequest, SearchHit hit) {
+        Map<String, Object> documentMap = hit.getSourceAsMap();
+
+        // 如果需要高亮 使用高亮后的替换掉原始的内容 复制一份 不修改命中里缓存的文档
+        if (searchRequest.getHighlight() != null) {
+            documentMap = new HashMap<>(documentMap);
+            Map<String, HighlightField> highlightFields = hit.getHighlightFields();
+            for (Map.Entry<String, HighlightField> entry : highlightFields.entrySet()) {
+                HighlightField highlightField = entry.getValue();
+                if (highlightField != null && highlightField.fragments() != null) {
+                    String fragments = Arrays.stream(highlightField.fragments())
+                                             .map(Text::string)
+                                             .collect(Collectors.joining());
+                    documentMap.put(entry.getKey(), fragments);
+                }
+            }
+        }
+
+        return documentMap;
+    }
+
+    /**
+     * 将按ID查询的结果转换为实体
+     * @param entityClass 实体类型
+     * @param entityMapping 实体映射
+     * @param response 查询结果
+     * @param <E> 实体类型
+     * @return 实体 文档不存在或不是该类型时返回null
+     */
+    private <E extends BaseEntity> E convertGetResponse(Class<E> entityClass, EntityMapping<E> entityMapping, GetResponse response) {
+        if (!response.isExists() || response.isSourceEmpty()) {
+            return null;
+        }
+        Map<String, Object> documentMap = response.getSourceAsMap();
+        // 同一索引中可能有其它类型的实体
+        Object clazz = documentMap.get(BaseEntity.CLAZZ);
+        if (clazz != null && !entityClass.getName().equals(clazz)) {
+            return null;
+        }
+        E entity = entityMapping.convert(documentMap);
+        if (OrmUtils.getPrimaryTermProperty(entityClass) != null) {
+            fillSeqNo(entity, response.getSeqNo(), response.getPrimaryTerm());
+        }
+        return entity;
+    }
+
+    /**
+     * 填充request的上下文
+     * @param searchRequest 搜索条件
+     * @return 索引名
+     */
+    private String fillSearchContext(SearchRequest searchRequest) {
+        String indexName = OrmUtils.getIndexName(searchRequest.getEntityClass());
+        searchRequest.setIndexName(indexName);
+        searchRequest.setDefaultDateFormat(properties.getDefaultDateFormat());
+        return indexName;
+    }
+
+    /**
+     * 切分出的批量请求
+     */
+    static class BulkChunk {
+
+        final BulkRequest request;
+
+        /**
+         * 每个条目在写请求集合中的位置
+         */
+        final List<Integer> positions = new ArrayList<>();
+
+        private BulkChunk(BulkRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * 准备好的查询
+     * @param <E> 实体类型
+     */
+    private static class PreparedSearch<E extends BaseEntity> {
+
+        private final SearchRequest searchRequest;
+
+        private final EntityMapping<E> entityMapping;
+
+        /**
+         * 投影类 查询实体时为空
+         */
+        private final Class<?> projectionClass;
+
+        private final SearchSourceBuilder sourceBuilder;
+
+        private final org.elasticsearch.action.search.SearchRequest request;
+
+        /**
+         * 是否回填seq_no和primary_term
+         */
+        private final boolean seqNoAndPrimaryTerm;
+
+        private PreparedSearch(SearchRequest searchRequest, EntityMapping<E> entityMapping, Class<?> projectionClass, SearchSourceBuilder sourceBuilder,
+                               org.elasticsearch.action.search.SearchRequest request, boolean seqNoAndPrimaryTerm) {
+            this.searchRequest = searchRequest;
+            this.entityMapping = entityMapping;
+            this.projectionClass = projectionClass;
+            this.sourceBuilder = sourceBuilder;
+            this.request = request;
+            this.seqNoAndPrimaryTerm = seqNoAndPrimaryTerm;
         }
     }
 
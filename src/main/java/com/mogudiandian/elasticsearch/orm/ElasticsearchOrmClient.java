@@ -1,11 +1,21 @@
 package com.mogudiandian.elasticsearch.orm;
 
 import com.mogudiandian.elasticsearch.orm.core.request.SearchRequest;
+import com.mogudiandian.elasticsearch.orm.core.response.BulkWriteResult;
+import com.mogudiandian.elasticsearch.orm.core.response.MultiSearchResult;
 import com.mogudiandian.elasticsearch.orm.core.response.SearchResult;
+import com.mogudiandian.elasticsearch.orm.core.response.StreamWriteResult;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * 任务搜索client
@@ -17,20 +27,315 @@ public interface ElasticsearchOrmClient {
 
     /**
      * 添加实体到ES
+     * 被拒绝的条目延迟后重试 重试前同一文档在其它调用中的写入可能已经成功 重试会用这里的版本覆盖它 需要严格顺序时使用@Version
      * @param entity 实体
      * @param <E> ES的实体类型
-     * @return document
+     * @return document 第一次访问时才由实体转换
      */
     <E extends BaseEntity> Map<String, Object> add(E entity);
 
     /**
-     * 批量添加实体到ES
+     * 添加实体到ES
+     * 被拒绝的条目延迟后重试 重试前同一文档在其它调用中的写入可能已经成功 重试会用这里的版本覆盖它 需要严格顺序时使用@Version
+     * @param entity 实体
+     * @param refreshPolicy 刷新策略 NONE不等待刷新 WAIT_UNTIL等待下一次刷新 IMMEDIATE立即刷新
+     * @param <E> ES的实体类型
+     * @return document 第一次访问时才由实体转换
+     */
+    <E extends BaseEntity> Map<String, Object> add(E entity, RefreshPolicy refreshPolicy);
+
+    /**
+     * 批量添加实体到ES 切分成多个请求并行发送 同一文档的多次写入在同一个请求中 按集合中的顺序生效
      * @param entities 实体集合
      * @param <E> 实体类型
-     * @return document集合
+     * @return document集合 每个document第一次访问时才由实体转换
      */
     <E extends BaseEntity> List<Map<String, Object>> addAll(List<E> entities);
 
+    /**
+     * 批量添加实体到ES 切分成多个请求并行发送 同一文档的多次写入在同一个请求中 按集合中的顺序生效
+     * @param entities 实体集合
+     * @param refreshPolicy 刷新策略 NONE不等待刷新 WAIT_UNTIL等待下一次刷新 IMMEDIATE立即刷新
+     * @param <E> 实体类型
+     * @return document集合 每个document第一次访问时才由实体转换
+     */
+    <E extends BaseEntity> List<Map<String, Object>> addAll(List<E> entities, RefreshPolicy refreshPolicy);
+
+    /**
+     * 批量添加实体到ES 失败的条目不抛异常 记录在结果中
+     * 同一文档在集合中后面还有写入时 前面被拒绝的条目不重试
+     * 被拒绝的条目延迟后重试 重试前同一文档在其它调用中的写入可能已经成功 重试会用这里的版本覆盖它 需要严格顺序时使用@Version
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return 写入结果 包括document集合和重试后仍然失败的条目
+     */
+    <E extends BaseEntity> BulkWriteResult<E> tryAddAll(List<E> entities);
+
+    /**
+     * 流式添加实体到ES 按需读取实体 攒批后发送 同时发送的批次有上限 内存占用有上限
+     * 同一文档的多次写入按流中的顺序生效 与发送中的批次有相同文档的批次等待它们完成后再发送
+     * 失败的条目不抛异常 记录在结果中
+     * @param entities 实体流 由调用方关闭
+     * @param <E> 实体类型
+     * @return 写入统计
+     */
+    <E extends BaseEntity> StreamWriteResult<E> addStream(Stream<E> entities);
+
+    /**
+     * 流式添加实体到ES 按需读取实体 攒批后发送 同时发送的批次有上限 内存占用有上限
+     * 同一文档的多次写入按流中的顺序生效 与发送中的批次有相同文档的批次等待它们完成后再发送
+     * 失败的条目不抛异常 记录在结果中
+     * @param entities 实体迭代器
+     * @param <E> 实体类型
+     * @return 写入统计
+     */
+    <E extends BaseEntity> StreamWriteResult<E> addIterator(Iterator<E> entities);
+
+    /**
+     * 异步添加实体到ES 不阻塞调用线程
+     * @param entity 实体
+     * @param <E> ES的实体类型
+     * @return document的future 在回调线程池中完成
+     */
+    <E extends BaseEntity> CompletableFuture<Map<String, Object>> addAsync(E entity);
+
+    /**
+     * 异步批量添加实体到ES 不阻塞调用线程
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return document集合的future 在回调线程池中完成
+     */
+    <E extends BaseEntity> CompletableFuture<List<Map<String, Object>>> addAllAsync(List<E> entities);
+
+    /**
+     * 异步批量添加实体到ES 失败的条目不抛异常 记录在结果中
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return 写入结果的future 在回调线程池中完成
+     */
+    <E extends BaseEntity> CompletableFuture<BulkWriteResult<E>> tryAddAllAsync(List<E> entities);
+
+    /**
+     * 根据ID局部更新实体 只更新给定的属性 实体有@Routing属性时抛出异常
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param properties 属性名 -> 属性值
+     * @param <E> 实体类型
+     * @return 局部document
+     */
+    <E extends BaseEntity> Map<String, Object> update(Class<E> entityClass, String id, Map<String, Object> properties);
+
+    /**
+     * 根据ID和路由局部更新实体 只更新给定的属性 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param routing 路由值 与写入时@Routing属性的值一致
+     * @param properties 属性名 -> 属性值
+     * @param <E> 实体类型
+     * @return 局部document
+     */
+    <E extends BaseEntity> Map<String, Object> update(Class<E> entityClass, String id, String routing, Map<String, Object> properties);
+
+    /**
+     * 局部更新实体 只更新不为空的属性
+     * @param entity 实体
+     * @param <E> 实体类型
+     * @return 局部document
+     */
+    <E extends BaseEntity> Map<String, Object> update(E entity);
+
+    /**
+     * 批量局部更新实体 只更新不为空的属性
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return 局部document集合
+     */
+    <E extends BaseEntity> List<Map<String, Object>> updateAll(List<E> entities);
+
+    /**
+     * 实体不存在时添加 存在时更新 内容没有变化时ES不会重新索引
+     * @param entity 实体
+     * @param <E> 实体类型
+     * @return document
+     */
+    <E extends BaseEntity> Map<String, Object> upsert(E entity);
+
+    /**
+     * 批量添加或更新实体
+     * @param entities 实体集合
+     * @param <E> 实体类型
+     * @return document集合
+     */
+    <E extends BaseEntity> List<Map<String, Object>> upsertAll(List<E> entities);
+
+    /**
+     * 根据ID使用脚本更新实体 实体有@Routing属性时抛出异常
+     * 脚本中的ctx._source.属性名 替换为ES中的字段名 与属性同名的参数值按写入规则转换
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param script painless脚本
+     * @param params 脚本参数
+     * @param <E> 实体类型
+     */
+    <E extends BaseEntity> void updateByScript(Class<E> entityClass, String id, String script, Map<String, Object> params);
+
+    /**
+     * 根据ID和路由使用脚本更新实体 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param routing 路由值
+     * @param script painless脚本
+     * @param params 脚本参数
+     * @param <E> 实体类型
+     */
+    <E extends BaseEntity> void updateByScript(Class<E> entityClass, String id, String routing, String script, Map<String, Object> params);
+
+    /**
+     * 根据ID集合使用脚本批量更新实体 实体有@Routing属性时抛出异常
+     * 脚本中的ctx._source.属性名 替换为ES中的字段名 与属性同名的参数值按写入规则转换
+     * @param entityClass 实体类型
+     * @param ids 实体ID集合
+     * @param script painless脚本
+     * @param params 脚本参数
+     * @param <E> 实体类型
+     */
+    <E extends BaseEntity> void updateAllByScript(Class<E> entityClass, Collection<String> ids, String script, Map<String, Object> params);
+
+    /**
+     * 根据ID和路由使用脚本批量更新实体 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param idRoutings 实体ID -> 路由值
+     * @param script painless脚本
+     * @param params 脚本参数
+     * @param <E> 实体类型
+     */
+    <E extends BaseEntity> void updateAllByScript(Class<E> entityClass, Map<String, String> idRoutings, String script, Map<String, Object> params);
+
+    /**
+     * 根据ID删除实体 实体有@Routing属性时抛出异常
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param <E> 实体类型
+     * @return 是否删除了文档 文档不存在时返回false
+     */
+    <E extends BaseEntity> boolean delete(Class<E> entityClass, String id);
+
+    /**
+     * 根据ID和路由删除实体 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param routing 路由值
+     * @param <E> 实体类型
+     * @return 是否删除了文档 文档不存在时返回false
+     */
+    <E extends BaseEntity> boolean delete(Class<E> entityClass, String id, String routing);
+
+    /**
+     * 根据ID集合批量删除实体 实体有@Routing属性时抛出异常
+     * @param entityClass 实体类型
+     * @param ids 实体ID集合
+     * @param <E> 实体类型
+     * @return 文档不存在的ID
+     */
+    <E extends BaseEntity> List<String> deleteAll(Class<E> entityClass, Collection<String> ids);
+
+    /**
+     * 根据ID和路由批量删除实体 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param idRoutings 实体ID -> 路由值
+     * @param <E> 实体类型
+     * @return 文档不存在的ID
+     */
+    <E extends BaseEntity> List<String> deleteAll(Class<E> entityClass, Map<String, String> idRoutings);
+
+    /**
+     * 根据ID查询实体 实时读取 不需要等待刷新
+     * 实体有@Routing属性时改为按ID搜索所有分片 不是实时读取 知道路由时使用带路由的方法
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param <E> 实体类型
+     * @return 实体 不存在时返回null
+     */
+    <E extends BaseEntity> E get(Class<E> entityClass, String id);
+
+    /**
+     * 根据ID和路由查询实体 实时读取 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param id 实体ID
+     * @param routing 路由值
+     * @param <E> 实体类型
+     * @return 实体 不存在时返回null
+     */
+    <E extends BaseEntity> E get(Class<E> entityClass, String id, String routing);
+
+    /**
+     * 根据ID集合批量查询实体 实时读取 ID太多时自动分批
+     * 实体有@Routing属性时改为按ID搜索所有分片 不是实时读取 知道路由时使用带路由的方法
+     * @param entityClass 实体类型
+     * @param ids 实体ID集合
+     * @param <E> 实体类型
+     * @return 存在的实体 顺序与ID一致
+     */
+    <E extends BaseEntity> List<E> multiGet(Class<E> entityClass, Collection<String> ids);
+
+    /**
+     * 根据ID和路由批量查询实体 实时读取 ID太多时自动分批 实体有@Routing属性时使用
+     * @param entityClass 实体类型
+     * @param idRoutings 实体ID -> 路由值
+     * @param <E> 实体类型
+     * @return 存在的实体 顺序与ID一致
+     */
+    <E extends BaseEntity> List<E> multiGet(Class<E> entityClass, Map<String, String> idRoutings);
+
+    /**
+     * 删除满足搜索条件的实体 分页和排序不生效
+     * @param searchRequest 搜索条件
+     * @return 删除的条数
+     */
+    long deleteByQuery(SearchRequest searchRequest);
+
+    /**
+     * 删除满足搜索条件的实体 分页和排序不生效
+     * @param searchRequest 搜索条件
+     * @param slices 并行切片数 0表示由ES自动决定
+     * @param requestsPerSecond 每秒删除的条数 为空表示不限流
+     * @return 删除的条数
+     */
+    long deleteByQuery(SearchRequest searchRequest, int slices, Float requestsPerSecond);
+
+    /**
+     * 批量导入 导入期间关闭索引刷新和副本 结束后(包括失败)恢复原来的设置并刷新
+     * 用法: client.bulkLoad(User.class, loader -> users.forEach(loader::add))
+     * @param entityClass 实体类型
+     * @param consumer 导入回调 在当前线程中执行
+     * @param <E> 实体类型
+     * @return 导入的条数
+     */
+    <E extends BaseEntity> long bulkLoad(Class<E> entityClass, Consumer<BulkLoader<E>> consumer);
+
+    /**
+     * 批量导入 导入期间关闭索引刷新和副本 结束后(包括失败)恢复原来的设置并刷新
+     * @param entityClass 实体类型
+     * @param consumer 导入回调 在当前线程中执行
+     * @param forceMerge 导入成功后是否合并为一个段
+     * @param <E> 实体类型
+     * @return 导入的条数
+     */
+    <E extends BaseEntity> long bulkLoad(Class<E> entityClass, Consumer<BulkLoader<E>> consumer, boolean forceMerge);
+
+    /**
+     * 在当前线程开启读己之写 写入不等待刷新 之后第一次搜索写过的索引前等待写入完成再刷新一次 异步搜索时异步刷新
+     * 用法: try (ReadYourWrites ignored = client.readYourWrites()) { ... }
+     * @return 当前线程的范围 关闭后结束
+     */
+    ReadYourWrites readYourWrites();
+
+    /**
+     * 获取写缓冲 通过写缓冲添加的实体会攒批后再写入ES
+     * @return 写缓冲
+     */
+    BufferedEntityWriter bufferedWriter();
+
     /**
      * 搜索
      * @param searchRequest 搜索条件
@@ -38,4 +343,56 @@ public interface ElasticsearchOrmClient {
      * @return 搜索结果
      */
     <E extends BaseEntity> SearchResult<E> search(SearchRequest searchRequest);
+
+    /**
+     * 搜索并转换为投影 只查询投影类的字段
+     * @param searchRequest 搜索条件
+     * @param projectionClass 投影类 需要有@Projection注解
+     * @param <P> 投影类型
+     * @return 搜索结果
+     */
+    <P> SearchResult<P> search(SearchRequest searchRequest, Class<P> projectionClass);
+
+    /**
+     * 统计符合条件的记录数 不取命中 分页、排序设置不生效
+     * @param searchRequest 搜索条件
+     * @return 记录数
+     */
+    long count(SearchRequest searchRequest);
+
+    /**
+     * 异步搜索 不阻塞调用线程 命中在回调线程池中转换为实体
+     * 取消返回的future会取消HTTP请求
+     * @param searchRequest 搜索条件
+     * @param <E> 实体类型
+     * @return 搜索结果的future
+     */
+    <E extends BaseEntity> CompletableFuture<SearchResult<E>> searchAsync(SearchRequest searchRequest);
+
+    /**
+     * 异步搜索 不阻塞调用线程 命中在指定的线程池中转换为实体
+     * 取消返回的future会取消HTTP请求
+     * @param searchRequest 搜索条件
+     * @param executor 转换命中的线程池
+     * @param <E> 实体类型
+     * @return 搜索结果的future
+     */
+    <E extends BaseEntity> CompletableFuture<SearchResult<E>> searchAsync(SearchRequest searchRequest, Executor executor);
+
+    /**
+     * 批量搜索 多个搜索条件(可以是不同实体)在一次请求中执行
+     * 单个搜索条件失败时只影响自己的结果
+     * @param searchRequests 搜索条件集合
+     * @return 批量搜索结果 顺序与搜索条件一致
+     */
+    MultiSearchResult multiSearch(List<SearchRequest> searchRequests);
+
+    /**
+     * 流式查询 基于search_after逐页获取 不受max_result_window限制 消费当前页时预取下一页
+     * 分页设置只使用每页条数 用完需要关闭: try (Stream<User> users = client.stream(request)) { ... }
+     * @param searchRequest 搜索条件
+     * @param <E> 实体类型
+     * @return 实体流
+     */
+    <E extends BaseEntity> Stream<E> stream(SearchRequest searchRequest);
 }
@@ -0,0 +1,92 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 线程范围的读己之写
+ * 范围内的写入不等待刷新 只记录写过的索引和写入的future 范围内第一次搜索写过的索引前等待写入完成再刷新一次该索引
+ * 多次写入只刷新一次 没有搜索时不刷新
+ * 可以嵌套 最外层关闭时结束
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public final class ReadYourWrites implements AutoCloseable {
+
+    private static final ThreadLocal<ReadYourWrites> CURRENT = new ThreadLocal<>();
+
+    /**
+     * 写过但还没有刷新的索引 -> 这些写入全部完成的future
+     */
+    private final Map<String, CompletableFuture<?>> pendingWrites = new HashMap<>();
+
+    /**
+     * 嵌套的层数
+     */
+    private int depth;
+
+    private ReadYourWrites() {
+    }
+
+    /**
+     * 在当前线程开启读己之写 已经开启时复用
+     * @return 当前线程的范围
+     */
+    static ReadYourWrites open() {
+        ReadYourWrites current = CURRENT.get();
+        if (current == null) {
+            current = new ReadYourWrites();
+            CURRENT.set(current);
+        }
+        current.depth++;
+        return current;
+    }
+
+    /**
+     * 当前线程是否开启了读己之写
+     * @return 开启返回true
+     */
+    public static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * 记录当前线程写过的索引 写入已经完成 没有开启时忽略
+     * @param indexName 索引名
+     */
+    static void markWritten(String indexName) {
+        markWritten(indexName, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * 记录当前线程写过的索引 没有开启时忽略
+     * @param indexName 索引名
+     * @param write 写入的future 异步写入和写缓冲完成后才能刷新
+     */
+    static void markWritten(String indexName, CompletableFuture<?> write) {
+        ReadYourWrites current = CURRENT.get();
+        if (current != null) {
+            current.pendingWrites.merge(indexName, write, (x, y) -> x.isDone() ? y : CompletableFuture.allOf(x, y));
+        }
+    }
+
+    /**
+     * 当前线程是否写过索引 返回后清除记录
+     * @param indexName 索引名
+     * @return 写过且还没有刷新时返回写入的future 否则返回null
+     */
+    static CompletableFuture<?> consumeWritten(String indexName) {
+        ReadYourWrites current = CURRENT.get();
+        return current != null ? current.pendingWrites.remove(indexName) : null;
+    }
+
+    @Override
+    public void close() {
+        if (depth > 0 && --depth == 0) {
+            CURRENT.remove();
+        }
+    }
+
+}
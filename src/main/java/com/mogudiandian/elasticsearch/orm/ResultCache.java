@@ -0,0 +1,176 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.profile.SearchProfileShardResults;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 搜索结果缓存 缓存ES的查询响应 按索引名+路由+偏好+查询条件JSON作为key 条数和存活时间有上限
+ * 命中按序列化后的字节缓存 每次获取都还原出新的命中 调用方修改命中不影响缓存
+ * 每个索引有一个代数 经过本客户端写入索引时代数加一 旧代数的缓存不再命中 等待淘汰
+ * 只能感知经过本客户端的写入 其他地方的修改要等缓存过期
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class ResultCache {
+
+    private final Cache<String, CachedResponse> cache;
+
+    /**
+     * 索引名 -> 代数
+     */
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    ResultCache(long maxSize, long ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maxSize)
+                                 .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * 生成缓存的key 需要在发送查询前生成 查询期间的写入会使这个key失效
+     * @param request ES的查询请求
+     * @return key
+     */
+    String key(SearchRequest request) {
+        StringBuilder builder = new StringBuilder();
+        for (String index : request.indices()) {
+            builder.append(index).append('@').append(generations.getOrDefault(index, 0L)).append(',');
+        }
+        if (request.routing() != null) {
+            builder.append(request.routing());
+        }
+        builder.append('\0');
+        if (request.preference() != null) {
+            builder.append(request.preference());
+        }
+        return builder.append('\0').append(request.source()).toString();
+    }
+
+    /**
+     * 获取缓存的响应
+     * @param key key
+     * @return 响应 没有时返回null
+     */
+    SearchResponse get(String key) {
+        CachedResponse cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return null;
+        }
+
+        try (StreamInput input = cached.hits.streamInput()) {
+            return withHits(cached.response, new SearchHits(input));
+        } catch (IOException e) {
+            throw new RuntimeException("restore cached search hits error", e);
+        }
+    }
+
+    /**
+     * 缓存响应 超时或有分片失败的响应不缓存
+     * @param key key
+     * @param response 响应
+     */
+    void put(String key, SearchResponse response) {
+        if (!response.isTimedOut() && response.getFailedShards() == 0) {
+            try (BytesStreamOutput output = new BytesStreamOutput()) {
+                SearchHits hits = response.getHits();
+                hits.writeTo(output);
+                // 原始响应去掉命中 避免命中保存两份
+                SearchHits emptyHits = new SearchHits(SearchHits.EMPTY, hits.getTotalHits(), hits.getMaxScore(), hits.getSortFields(), hits.getCollapseField(), hits.getCollapseValues());
+                cache.put(key, new CachedResponse(withHits(response, emptyHits), output.bytes()));
+            } catch (IOException e) {
+                // 序列化失败时不缓存
+            }
+        }
+    }
+
+    /**
+     * 替换响应中的命中 其余部分不变
+     * @param response 响应
+     * @param hits 命中
+     * @return 新的响应
+     */
+    private static SearchResponse withHits(SearchResponse response, SearchHits hits) {
+        Map<String, ?> profile = response.getProfileResults();
+        SearchResponseSections sections = new SearchResponseSections(hits, response.getAggregations(), response.getSuggest(), response.isTimedOut(), response.isTerminatedEarly(),
+                profile == null || profile.isEmpty() ? null : new SearchProfileShardResults(response.getProfileResults()), response.getNumReducePhases());
+        return new SearchResponse(sections, response.getScrollId(), response.getTotalShards(), response.getSuccessfulShards(), response.getSkippedShards(),
+                response.getTook().millis(), response.getShardFailures(), response.getClusters());
+    }
+
+    /**
+     * 索引有写入 之前的缓存失效
+     * @param indexName 索引名
+     */
+    public void invalidate(String indexName) {
+        generations.merge(indexName, 1L, Long::sum);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long getHits() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMisses() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * 因为条数或存活时间被淘汰的条数
+     */
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * 缓存的响应 命中单独序列化保存
+     */
+    private static final class CachedResponse {
+
+        /**
+         * 去掉命中的响应
+         */
+        private final SearchResponse response;
+
+        /**
+         * 序列化后的命中
+         */
+        private final BytesReference hits;
+
+        private CachedResponse(SearchResponse response, BytesReference hits) {
+            this.response = response;
+            this.hits = hits;
+        }
+    }
+
+}
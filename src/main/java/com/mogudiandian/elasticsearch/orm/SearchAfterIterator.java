@@ -0,0 +1,97 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * 基于search_after的实体迭代器
+ * 拿到一页后立即预取下一页 调用方消费当前页时下一页已经在查询中
+ * 排序的最后一个字段是_id 保证翻页时不重复不遗漏
+ * @param <E> 实体类型
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+class SearchAfterIterator<E> implements Iterator<E>, AutoCloseable {
+
+    private final DefaultElasticsearchOrmClient client;
+
+    /**
+     * 第一页的请求 翻页时只修改search_after
+     */
+    private final SearchRequest request;
+
+    private final int pageSize;
+
+    /**
+     * 命中 -> 实体
+     */
+    private final Function<SearchHit, E> converter;
+
+    /**
+     * 查询中的下一页 没有下一页时为空
+     */
+    private CompletableFuture<SearchResponse> next;
+
+    private SearchHit[] hits = new SearchHit[0];
+
+    private int position;
+
+    private boolean closed;
+
+    SearchAfterIterator(DefaultElasticsearchOrmClient client, SearchRequest request, Function<SearchHit, E> converter) {
+        this.client = client;
+        this.request = request;
+        this.pageSize = request.source().size();
+        this.converter = converter;
+        this.next = client.executeSearchAsync(request);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= hits.length) {
+            if (closed || next == null) {
+                return false;
+            }
+            SearchResponse response = DefaultElasticsearchOrmClient.join(next);
+            hits = response.getHits().getHits();
+            position = 0;
+            // 不满一页说明是最后一页
+            if (hits.length < pageSize) {
+                next = null;
+            } else {
+                request.source().searchAfter(hits[hits.length - 1].getSortValues());
+                next = client.executeSearchAsync(request);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return converter.apply(hits[position++]);
+    }
+
+    /**
+     * 取消预取中的查询
+     */
+    @Override
+    public void close() {
+        closed = true;
+        hits = new SearchHit[0];
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+    }
+
+}
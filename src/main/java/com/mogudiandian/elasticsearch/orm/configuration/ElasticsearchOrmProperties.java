@@ -3,6 +3,7 @@ package com.mogudiandian.elasticsearch.orm.configuration;
 import com.mogudiandian.elasticsearch.orm.datasource.ElasticsearchProperties;
 import lombok.Getter;
 import lombok.Setter;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 /**
@@ -36,6 +37,132 @@ public class ElasticsearchOrmProperties extends ElasticsearchProperties {
      */
     private Long queryTimeout = 5000L;
 
+    /**
+     * 异步回调的线程数 没有自定义回调线程池时使用
+     */
+    private int callbackThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 批量添加时每个请求最多多少条 超过会切分成多个请求
+     */
+    private int bulkMaxActions = 1000;
+
+    /**
+     * 批量添加时每个请求最多多少字节 超过会切分成多个请求
+     */
+    private long bulkMaxBytes = 5 * 1024 * 1024L;
+
+    /**
+     * 批量添加切分后同时发送的请求数 同一文档的多次写入总是在同一个请求中 不会因并行打乱顺序
+     */
+    private int bulkParallelism = 4;
+
+    /**
+     * 批量添加时被拒绝(429)等可重试条目的最大重试次数
+     * 同一请求中同一文档后面还有写入时不重试 但重试前其它请求对同一文档的写入可能已经成功 会被重试的旧版本覆盖
+     */
+    private int bulkMaxRetries = 3;
+
+    /**
+     * 批量添加重试的初始间隔 毫秒 每次重试翻倍
+     */
+    private Long bulkRetryBackoff = 100L;
+
+    /**
+     * 批量添加重试的最大间隔 毫秒
+     */
+    private Long bulkRetryMaxBackoff = 5000L;
+
+    /**
+     * 写入的默认刷新策略 NONE不等待刷新 WAIT_UNTIL等待下一次刷新 IMMEDIATE立即刷新
+     */
+    private RefreshPolicy refreshPolicy = RefreshPolicy.NONE;
+
+    /**
+     * 更新时遇到版本冲突的重试次数
+     */
+    private int updateRetryOnConflict = 3;
+
+    /**
+     * 按条件删除时每批的条数
+     */
+    private int deleteByQueryBatchSize = 1000;
+
+    /**
+     * 按条件删除时的并行切片数 0表示由ES自动决定
+     */
+    private int deleteByQuerySlices = 0;
+
+    /**
+     * 按条件删除时每秒删除的条数 为空表示不限流
+     */
+    private Float deleteByQueryRequestsPerSecond;
+
+    /**
+     * 默认最多精确统计到多少条总记录数 -1不统计 Integer.MAX_VALUE精确统计
+     */
+    private int trackTotalHitsUpTo = Integer.MAX_VALUE;
+
+    /**
+     * 按ID批量查询时每批的条数
+     */
+    private int multiGetBatchSize = 1000;
+
+    /**
+     * 写缓冲中攒够多少条就写入ES
+     */
+    private int bufferMaxActions = 1000;
+
+    /**
+     * 写缓冲中攒够多少字节就写入ES
+     */
+    private long bufferMaxBytes = 5 * 1024 * 1024L;
+
+    /**
+     * 写缓冲最长多久写入一次ES 毫秒
+     */
+    private Long bufferFlushInterval = 1000L;
+
+    /**
+     * 写缓冲最多容纳多少条(包括写入中的) 满了以后添加会阻塞
+     */
+    private int bufferCapacity = 10000;
+
+    /**
+     * 流式查询每页的条数
+     */
+    private int streamPageSize = 1000;
+
+    /**
+     * 启用写入合并 同一批添加中或写缓冲的一个窗口(bufferFlushInterval)内 同一文档只写入最新的版本
+     */
+    private boolean enableWriteCoalescing = false;
+
+    /**
+     * 启用变更检测 内容没有变化的实体不再写入ES
+     */
+    private boolean enableChangeDetection = false;
+
+    /**
+     * 变更检测最多记录的文档数
+     */
+    private int changeDetectionMaxSize = 100000;
+
+    /**
+     * 启用搜索结果缓存 搜索条件还需要调用enableCache
+     */
+    private boolean enableResultCache = false;
+
+    /**
+     * 搜索结果缓存最多缓存的条数
+     */
+    private long resultCacheMaxSize = 1000;
+
+    /**
+     * 搜索结果缓存的存活时间 毫秒
+     */
+    private long resultCacheTtl = 10000L;
+
     /**
      * 启用清理任务
      */
@@ -2,9 +2,22 @@ package com.mogudiandian.elasticsearch.orm.core;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.ParserConfig;
+import com.alibaba.fastjson.util.TypeUtils;
 import com.mogudiandian.elasticsearch.orm.core.util.LifecycleUtils;
 import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Type;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -17,8 +30,52 @@ import java.util.stream.Collectors;
  */
 public class DefaultEntityMapping<E extends BaseEntity> extends EntityMapping<E> {
 
+    /**
+     * 属性的编码表 字段名预先encode 第一次写入时构建
+     */
+    private volatile List<PropertyCodec> propertyCodecs;
+
+    /**
+     * 字段名 -> 属性的解码 第一次读取时构建 实体没有无参构造方法时为空表 走Map转换
+     */
+    private volatile Map<String, PropertyDecoder> propertyDecoders;
+
+    /**
+     * 实体的无参构造方法
+     */
+    private volatile Constructor<E> constructor;
+
+    /**
+     * 子类没有重写convert(E)时才直接编码 否则走重写的转换
+     */
+    private final boolean directEncode;
+
+    /**
+     * 子类没有重写convert(Map)时才直接从字节解码 否则走重写的转换
+     */
+    private final boolean directDecode;
+
     public DefaultEntityMapping(Class<E> entityClass) {
         super(entityClass);
+        this.directEncode = !overrides("convert", BaseEntity.class);
+        this.directDecode = !overrides("convert", Map.class);
+    }
+
+    /**
+     * 判断子类是否重写了本类的方法
+     * @param name 方法名
+     * @param parameterTypes 擦除后的参数类型
+     * @return 是否重写
+     */
+    private boolean overrides(String name, Class<?>... parameterTypes) {
+        if (getClass() == DefaultEntityMapping.class) {
+            return false;
+        }
+        try {
+            return getClass().getMethod(name, parameterTypes).getDeclaringClass() != DefaultEntityMapping.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
     }
 
     @Override
@@ -55,9 +112,11 @@ public class DefaultEntityMapping<E extends BaseEntity> extends EntityMapping<E>
                                                                        .stream()
                                                                        .collect(Collectors.groupingBy(EntityProperty::getFeatures));
 
-        // 无特征
+        // 无特征 seq_no和primary_term是ES的元数据 不写入文档
         Optional.ofNullable(featureProperties.get(EntityProperty.NO_FEATURE))
-                .ifPresent(list -> list.forEach(x -> map.put(x.getName(), x.invokeGetter(entity))));
+                .ifPresent(list -> list.stream()
+                                       .filter(x -> !x.isMetadata())
+                                       .forEach(x -> map.put(x.getName(), x.invokeGetter(entity))));
 
         // 将嵌套字段名称encode
         Optional.ofNullable(featureProperties.get(EntityProperty.FEATURE_FOR_NESTED))
@@ -87,8 +146,155 @@ public class DefaultEntityMapping<E extends BaseEntity> extends EntityMapping<E>
         return map;
     }
 
+    @Override
+    public BytesReference toSource(E entity) {
+        if (!directEncode) {
+            return super.toSource(entity);
+        }
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            List<PropertyCodec> codecs = propertyCodecs();
+            builder.startObject();
+            // 与convert(E)一致 同名属性覆盖id和class
+            if (codecs.stream().noneMatch(x -> BaseEntity.ID.equals(x.fieldName))) {
+                builder.field(BaseEntity.ID, entity.entityId());
+            }
+            if (codecs.stream().noneMatch(x -> BaseEntity.CLAZZ.equals(x.fieldName))) {
+                builder.field(BaseEntity.CLAZZ, entity.getClass().getName());
+            }
+            for (PropertyCodec codec : codecs) {
+                codec.write(entity, builder);
+            }
+            builder.endObject();
+            return BytesReference.bytes(builder);
+        } catch (IOException e) {
+            throw new RuntimeException("serialize entity " + entity.entityId() + " error", e);
+        }
+    }
+
+    /**
+     * 获取属性的编码表 与convert(E)的规则一致 有多个特征的属性和ES元数据不写入
+     * @return 编码表
+     */
+    private List<PropertyCodec> propertyCodecs() {
+        List<PropertyCodec> codecs = propertyCodecs;
+        if (codecs == null) {
+            codecs = OrmUtils.getEntityProperties(super.entityClass)
+                             .stream()
+                             .filter(x -> !x.isMetadata())
+                             .filter(x -> x.getFeatures() == EntityProperty.NO_FEATURE
+                                     || x.getFeatures() == EntityProperty.FEATURE_FOR_SEARCH
+                                     || x.getFeatures() == EntityProperty.FEATURE_FOR_LIFECYCLE
+                                     || x.getFeatures() == EntityProperty.FEATURE_FOR_NESTED)
+                             .map(x -> new PropertyCodec(x, OrmUtils.getEntityFieldName(super.entityClass, x.getName())))
+                             .collect(Collectors.toList());
+            propertyCodecs = codecs;
+        }
+        return codecs;
+    }
+
+    @Override
+    public Map<String, Object> convertProperties(Map<String, Object> properties) {
+        Map<String, Object> map = new HashMap<>(properties.size());
+
+        Map<String, EntityProperty> entityProperties = OrmUtils.getEntityProperties(super.entityClass)
+                                                               .stream()
+                                                               .collect(Collectors.toMap(EntityProperty::getName, x -> x));
+
+        properties.forEach((name, value) -> {
+            EntityProperty property = entityProperties.get(name);
+            if (property != null && property.isMetadata()) {
+                return;
+            }
+            if (property != null && value != null) {
+                // 与整个实体转换时的规则一致
+                if (property.isForSearch()) {
+                    if (value instanceof String && property.getSearchField().removeHtmlTags()) {
+                        value = ((String) value).replaceAll("<.+?>", "");
+                    }
+                } else if (property.isForLifecycle()) {
+                    value = LifecycleUtils.convertPropertyValue(property, value);
+                } else if (property.isForNested()) {
+                    value = JSON.toJSON(value);
+                }
+            }
+            map.put(OrmUtils.getEntityFieldName(super.entityClass, name), value);
+        });
+
+        return map;
+    }
+
     @Override
     public E convert(Map<String, Object> map) {
+        return decode(map).toJavaObject(super.entityClass);
+    }
+
+    @Override
+    public <P> P convert(Map<String, Object> map, Class<P> projectionClass) {
+        return decode(map).toJavaObject(projectionClass);
+    }
+
+    @Override
+    public E convert(BytesReference source) {
+        if (!directDecode) {
+            return super.convert(source);
+        }
+        Map<String, PropertyDecoder> decoders = propertyDecoders();
+        if (decoders.isEmpty()) {
+            return super.convert(source);
+        }
+
+        // 直接从字节流读取到实体 字段名按表还原 不经过整个文档的Map和JSONObject
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IllegalStateException("document of " + super.entityClass.getName() + " is not an object");
+            }
+            E entity = constructor.newInstance();
+            for (XContentParser.Token token = parser.nextToken(); token == XContentParser.Token.FIELD_NAME; token = parser.nextToken()) {
+                PropertyDecoder decoder = decoders.get(parser.currentName());
+                token = parser.nextToken();
+                if (decoder == null) {
+                    parser.skipChildren();
+                } else {
+                    decoder.read(entity, parser, token);
+                }
+            }
+            return entity;
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new RuntimeException("deserialize document to " + super.entityClass.getName() + " error", e);
+        }
+    }
+
+    /**
+     * 获取字段的解码表 与convert(Map)的规则一致
+     * @return 解码表 实体没有无参构造方法时为空
+     */
+    private Map<String, PropertyDecoder> propertyDecoders() {
+        Map<String, PropertyDecoder> decoders = propertyDecoders;
+        if (decoders == null) {
+            decoders = new HashMap<>();
+            try {
+                Constructor<E> constructor = super.entityClass.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                this.constructor = constructor;
+                for (EntityProperty property : OrmUtils.getEntityProperties(super.entityClass)) {
+                    if (!property.isMetadata()) {
+                        decoders.put(OrmUtils.getEntityFieldName(super.entityClass, property.getName()), new PropertyDecoder(property));
+                    }
+                }
+            } catch (NoSuchMethodException e) {
+                decoders.clear();
+            }
+            propertyDecoders = decoders;
+        }
+        return decoders;
+    }
+
+    /**
+     * 将ES文档的字段名还原为属性名
+     * @param map ES文档
+     * @return 属性名 -> 属性值
+     */
+    private JSONObject decode(Map<String, Object> map) {
         JSONObject jsonObject = new JSONObject(map);
 
         List<EntityProperty> entityProperties = OrmUtils.getEntityProperties(super.entityClass);
@@ -125,7 +331,93 @@ public class DefaultEntityMapping<E extends BaseEntity> extends EntityMapping<E>
                             }
                         });
 
-        return jsonObject.toJavaObject(super.entityClass);
+        return jsonObject;
+    }
+
+    /**
+     * 属性的解码 从文档中读取属性值设置到实体
+     */
+    private static class PropertyDecoder {
+
+        private final EntityProperty property;
+
+        private final Type type;
+
+        private PropertyDecoder(EntityProperty property) {
+            this.property = property;
+            this.type = property.getGenericType();
+        }
+
+        private void read(Object entity, XContentParser parser, XContentParser.Token token) throws IOException {
+            Object value;
+            if (token == XContentParser.Token.START_OBJECT) {
+                value = parser.map();
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                value = parser.list();
+            } else {
+                value = parser.objectText();
+            }
+            if (value == null) {
+                return;
+            }
+
+            // 与convert(Map)一致 搜索字段优先 其次生命周期字段
+            if (property.isForLifecycle() && !property.isForSearch()) {
+                value = LifecycleUtils.revertPropertyValue(property, TypeUtils.castToLong(value));
+            } else if (!(type instanceof Class && ((Class<?>) type).isInstance(value))) {
+                value = TypeUtils.cast(value, type, ParserConfig.getGlobalInstance());
+            }
+            property.invokeSetter(entity, value);
+        }
+    }
+
+    /**
+     * 属性的编码 将属性值直接写入文档
+     */
+    private static class PropertyCodec {
+
+        private final EntityProperty property;
+
+        /**
+         * encode后的字段名
+         */
+        private final String fieldName;
+
+        private final int features;
+
+        private final boolean removeHtmlTags;
+
+        private PropertyCodec(EntityProperty property, String fieldName) {
+            this.property = property;
+            this.fieldName = fieldName;
+            this.features = property.getFeatures();
+            this.removeHtmlTags = property.isForSearch() && property.getSearchField().removeHtmlTags();
+        }
+
+        private void write(Object entity, XContentBuilder builder) throws IOException {
+            switch (features) {
+                case EntityProperty.FEATURE_FOR_SEARCH:
+                    Object value = property.invokeGetter(entity);
+                    if (value instanceof String && removeHtmlTags) {
+                        value = ((String) value).replaceAll("<.+?>", "");
+                    }
+                    builder.field(fieldName, value);
+                    break;
+                case EntityProperty.FEATURE_FOR_LIFECYCLE:
+                    builder.field(fieldName, LifecycleUtils.getPropertyValue(entity, property));
+                    break;
+                case EntityProperty.FEATURE_FOR_NESTED:
+                    // 嵌套字段为空时不写入 与convert(E)一致 仍然经过JSON.toJSON以保持日期等类型的写法
+                    Object nested = property.invokeGetter(entity);
+                    if (nested != null) {
+                        builder.field(fieldName, JSON.toJSON(nested));
+                    }
+                    break;
+                default:
+                    builder.field(fieldName, property.invokeGetter(entity));
+                    break;
+            }
+        }
     }
 
 }
@@ -1,5 +1,17 @@
 package com.mogudiandian.elasticsearch.orm.core;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,10 +49,54 @@ public abstract class EntityMapping<E extends BaseEntity> {
      */
     public abstract Map<String, Object> convert(E entity);
 
+    /**
+     * 从实体到ES文档字节的映射 用于写入 默认先转换为Map再序列化
+     * @param entity ES的实体
+     * @return JSON格式的ES文档
+     */
+    public BytesReference toSource(E entity) {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            return BytesReference.bytes(builder.map(convert(entity)));
+        } catch (IOException e) {
+            throw new RuntimeException("serialize entity " + entity.entityId() + " error", e);
+        }
+    }
+
     /**
      * 从ES文档到实体的映射
      * @param map ES文档
      * @return ES的实体
      */
     public abstract E convert(Map<String, Object> map);
+
+    /**
+     * 从ES文档字节到实体的映射 用于读取 默认先解析为Map再转换
+     * @param source JSON格式的ES文档
+     * @return ES的实体
+     */
+    public E convert(BytesReference source) {
+        return convert(XContentHelper.convertToMap(source, false, XContentType.JSON).v2());
+    }
+
+    /**
+     * 从ES文档到投影类的映射 默认先转换为实体再复制属性
+     * @param map ES文档 只包含投影的字段
+     * @param projectionClass 投影类
+     * @param <P> 投影类型
+     * @return 投影
+     */
+    public <P> P convert(Map<String, Object> map, Class<P> projectionClass) {
+        return ((JSONObject) JSON.toJSON(convert(map))).toJavaObject(projectionClass);
+    }
+
+    /**
+     * 从实体的部分属性到ES文档部分字段的映射 用于局部更新
+     * @param properties 属性名 -> 属性值
+     * @return ES文档的部分字段
+     */
+    public Map<String, Object> convertProperties(Map<String, Object> properties) {
+        Map<String, Object> map = new HashMap<>(properties.size());
+        properties.forEach((name, value) -> map.put(OrmUtils.getEntityFieldName(entityClass, name), value));
+        return map;
+    }
 }
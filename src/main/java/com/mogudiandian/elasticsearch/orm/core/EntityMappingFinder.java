@@ -4,8 +4,8 @@ import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
 import lombok.extern.slf4j.Slf4j;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Entity映射查找器
@@ -19,7 +19,7 @@ public final class EntityMappingFinder {
     /**
      * 缓存
      */
-    private static final Map<Class<? extends BaseEntity>, EntityMapping<? extends BaseEntity>> cache = new HashMap<>();
+    private static final Map<Class<? extends BaseEntity>, EntityMapping<? extends BaseEntity>> cache = new ConcurrentHashMap<>();
 
     /**
      * 获取实体类型对应的mapping 走缓存
@@ -28,12 +28,8 @@ public final class EntityMappingFinder {
      * @return mapping
      */
     public static <E extends BaseEntity> EntityMapping<E> find(Class<E> entityClass) {
-        EntityMapping<E> mapping = (EntityMapping<E>) cache.get(entityClass);
-        if (mapping == null) {
-            mapping = find0(entityClass);
-            cache.put(entityClass, mapping);
-        }
-        return mapping;
+        // 多线程同时查找时只创建一个mapping 映射中的编解码表也只构建一次
+        return (EntityMapping<E>) cache.computeIfAbsent(entityClass, EntityMappingFinder::find0);
     }
 
     /**
@@ -2,7 +2,10 @@ package com.mogudiandian.elasticsearch.orm.core;
 
 import com.mogudiandian.elasticsearch.orm.core.annotation.LifecycleField;
 import com.mogudiandian.elasticsearch.orm.core.annotation.NestedField;
+import com.mogudiandian.elasticsearch.orm.core.annotation.PrimaryTerm;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Routing;
 import com.mogudiandian.elasticsearch.orm.core.annotation.SearchField;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Version;
 import org.springframework.core.ResolvableType;
 
 import java.lang.reflect.Field;
@@ -56,6 +59,26 @@ public class EntityProperty extends ObjectProperty {
      */
     private Class<? extends BaseEntity> nestedFieldType;
 
+    /**
+     * 表示版本的注解
+     */
+    private Version version;
+
+    /**
+     * 是否是版本字段
+     */
+    private boolean forVersion;
+
+    /**
+     * 是否是primary_term字段
+     */
+    private boolean forPrimaryTerm;
+
+    /**
+     * 是否是路由字段
+     */
+    private boolean forRouting;
+
     public EntityProperty(Field field) {
         super(field);
 
@@ -65,6 +88,10 @@ public class EntityProperty extends ObjectProperty {
         this.forLifecycle = (this.lifecycleField != null);
         this.nestedField = field.getAnnotation(NestedField.class);
         this.forNested = (this.nestedField != null);
+        this.version = field.getAnnotation(Version.class);
+        this.forVersion = (this.version != null);
+        this.forPrimaryTerm = field.isAnnotationPresent(PrimaryTerm.class);
+        this.forRouting = field.isAnnotationPresent(Routing.class);
         if (this.forNested) {
             Class<?> fieldType = field.getType();
             if (BaseEntity.class.isAssignableFrom(fieldType)) {
@@ -119,6 +146,42 @@ public class EntityProperty extends ObjectProperty {
         return nestedFieldType;
     }
 
+    public Version getVersion() {
+        return version;
+    }
+
+    /**
+     * 属性是否表示版本
+     * @return 是否是版本字段
+     */
+    public boolean isForVersion() {
+        return forVersion;
+    }
+
+    /**
+     * 属性是否表示primary_term
+     * @return 是否是primary_term字段
+     */
+    public boolean isForPrimaryTerm() {
+        return forPrimaryTerm;
+    }
+
+    /**
+     * 属性是否表示路由
+     * @return 是否是路由字段
+     */
+    public boolean isForRouting() {
+        return forRouting;
+    }
+
+    /**
+     * 属性是否是ES的元数据 元数据不写入文档
+     * @return seq_no和primary_term返回true
+     */
+    public boolean isMetadata() {
+        return (forVersion && version.value() == Version.Type.SEQ_NO) || forPrimaryTerm;
+    }
+
     /**
      * 获取属性特征
      * @return 所有特征值求和
@@ -0,0 +1,50 @@
+package com.mogudiandian.elasticsearch.orm.core;
+
+import com.google.common.collect.ForwardingMap;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * 延迟构建的文档 第一次访问时才构建Map
+ * 写入时实体直接序列化为字节 调用方不使用返回的文档时不再额外构建Map
+ * 构建时由实体转换 第一次访问前修改实体会反映到文档中
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class LazyDocument extends ForwardingMap<String, Object> {
+
+    private Supplier<Map<String, Object>> supplier;
+
+    private volatile Map<String, Object> document;
+
+    public LazyDocument(Supplier<Map<String, Object>> supplier) {
+        this.supplier = supplier;
+    }
+
+    /**
+     * 文档是否已经构建
+     * @return 已经构建返回true
+     */
+    public boolean isBuilt() {
+        return document != null;
+    }
+
+    @Override
+    protected Map<String, Object> delegate() {
+        Map<String, Object> map = document;
+        if (map == null) {
+            synchronized (this) {
+                map = document;
+                if (map == null) {
+                    map = supplier.get();
+                    document = map;
+                    supplier = null;
+                }
+            }
+        }
+        return map;
+    }
+
+}
@@ -5,6 +5,7 @@ import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
 
 /**
  * 对象的属性
@@ -64,6 +65,14 @@ public class ObjectProperty {
         return field.getType();
     }
 
+    /**
+     * 获取属性的泛型类型
+     * @return 属性的泛型类型
+     */
+    public Type getGenericType() {
+        return field.getGenericType();
+    }
+
     /**
      * 调用属性的getter
      * @param obj 实例
@@ -0,0 +1,16 @@
+package com.mogudiandian.elasticsearch.orm.core.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 乐观锁的primary_term字段 与@Version(Version.Type.SEQ_NO)一起使用
+ * 属性类型必须是Long/long
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Target({ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface PrimaryTerm {
+}
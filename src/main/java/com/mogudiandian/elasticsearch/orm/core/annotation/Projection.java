@@ -0,0 +1,25 @@
+package com.mogudiandian.elasticsearch.orm.core.annotation;
+
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+
+import java.lang.annotation.*;
+
+/**
+ * 投影类 只查询实体的部分属性
+ * 投影类的属性名与实体的属性名一致 搜索时只返回这些属性对应的字段
+ * 投影类需要在base-package下 与实体一起扫描
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Projection {
+
+    /**
+     * 投影的实体类
+     */
+    Class<? extends BaseEntity> value();
+
+}
@@ -0,0 +1,17 @@
+package com.mogudiandian.elasticsearch.orm.core.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 路由字段 写入时用属性值作为分片路由 同一路由的实体写入同一个分片
+ * 搜索时在SearchRequest中设置相同的路由 只查询对应的分片
+ * 传入实体的写入自动带上路由 按ID操作时需要使用带路由的方法 否则抛出异常
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Target({ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Routing {
+}
@@ -0,0 +1,46 @@
+package com.mogudiandian.elasticsearch.orm.core.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 版本字段 写入时由ES校验版本 过期的写入会以冲突被拒绝
+ * 属性类型必须是Long/long 值为空时不校验
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Target({ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Version {
+
+    /**
+     * 版本的类型
+     * @return 默认外部版本
+     */
+    Type value() default Type.EXTERNAL;
+
+    /**
+     * 版本的类型
+     */
+    enum Type {
+
+        /**
+         * 外部版本 版本号必须大于ES中的版本号
+         */
+        EXTERNAL,
+
+        /**
+         * 外部版本 版本号必须大于等于ES中的版本号
+         */
+        EXTERNAL_GTE,
+
+        /**
+         * 乐观锁 属性值为ES的seq_no 需要同时用@PrimaryTerm注解primary_term属性
+         * 这两个属性不写入文档 查询和写入成功后由ES回填
+         */
+        SEQ_NO
+
+    }
+
+}
@@ -3,11 +3,16 @@ package com.mogudiandian.elasticsearch.orm.core.request;
 import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
 import com.mogudiandian.elasticsearch.orm.core.request.api.HighlightConfig;
 import com.mogudiandian.elasticsearch.orm.core.request.api.PaginationConfig;
+import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
 
 /**
  * 搜索请求条件
@@ -17,6 +22,11 @@ import org.elasticsearch.search.builder.SearchSourceBuilder;
  */
 public abstract class SearchRequest {
 
+    /**
+     * 会话粘滞偏好的前缀
+     */
+    private static final String SESSION_PREFERENCE_PREFIX = "session:";
+
     /**
      * 要查询的实体class
      */
@@ -35,6 +45,56 @@ public abstract class SearchRequest {
      */
     protected FastDateFormat defaultDateFormat;
 
+    /**
+     * 分片路由 为空时查询所有分片
+     */
+    @Getter
+    protected String[] routings;
+
+    /**
+     * 是否使用ES的分片请求缓存 为空时使用索引的设置
+     */
+    @Getter
+    @Setter
+    protected Boolean requestCache;
+
+    /**
+     * 选择分片副本的偏好 例如 _local、_only_local 或自定义字符串 为空时由ES选择
+     */
+    @Getter
+    @Setter
+    protected String preference;
+
+    /**
+     * 是否用游标翻页
+     */
+    @Getter
+    protected boolean cursorEnabled;
+
+    /**
+     * 上一页返回的游标 为空时查询第一页
+     */
+    @Getter
+    protected String cursor;
+
+    /**
+     * 只查询的属性 为空时查询所有属性
+     */
+    @Getter
+    protected String[] includeFields;
+
+    /**
+     * 精确统计总记录数的上限 -1不统计 Integer.MAX_VALUE精确统计 为空时使用配置
+     */
+    @Getter
+    protected Integer trackTotalHitsUpTo;
+
+    /**
+     * 是否使用搜索结果缓存
+     */
+    @Getter
+    protected boolean cacheEnabled;
+
     /**
      * 是否开启调试
      */
@@ -57,6 +117,71 @@ public abstract class SearchRequest {
         this.defaultDateFormat = FastDateFormat.getInstance(format);
     }
 
+    /**
+     * 设置分片路由 与写入时实体@Routing属性的值一致
+     * @param routings 路由值
+     */
+    public void setRoutings(String... routings) {
+        this.routings = routings;
+    }
+
+    /**
+     * 会话粘滞 同一会话的查询总是落在同样的分片副本上 翻页时结果稳定 分片请求缓存也更容易命中
+     * @param sessionId 会话ID 例如用户ID
+     */
+    public void setSessionPreference(String sessionId) {
+        // 自定义的偏好不能以_开头
+        this.preference = SESSION_PREFERENCE_PREFIX + sessionId;
+    }
+
+    /**
+     * 用游标翻页 第一页调用 结果中返回下一页的游标
+     * 游标翻页只使用分页设置中的每页条数 每一页的代价都和第一页一样
+     */
+    public void enableCursor() {
+        this.cursorEnabled = true;
+    }
+
+    /**
+     * 设置上一页返回的游标 查询下一页
+     * @param cursor 上一页的SearchResult.nextCursor
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+        this.cursorEnabled = true;
+    }
+
+    /**
+     * 只查询实体的部分属性 其它属性为空
+     * @param propertyNames 属性名
+     */
+    public void includeFields(String... propertyNames) {
+        this.includeFields = propertyNames;
+    }
+
+    /**
+     * 是否统计总记录数 不需要总数时关闭可以提前结束查询
+     * @param trackTotalHits true精确统计 false不统计
+     */
+    public void setTrackTotalHits(boolean trackTotalHits) {
+        this.trackTotalHitsUpTo = trackTotalHits ? SearchContext.TRACK_TOTAL_HITS_ACCURATE : SearchContext.TRACK_TOTAL_HITS_DISABLED;
+    }
+
+    /**
+     * 最多精确统计到多少条 超过时总记录数是下限
+     * @param trackTotalHitsUpTo 上限
+     */
+    public void setTrackTotalHitsUpTo(int trackTotalHitsUpTo) {
+        this.trackTotalHitsUpTo = trackTotalHitsUpTo;
+    }
+
+    /**
+     * 使用客户端的搜索结果缓存 需要配置中启用 适合重复执行且允许短时间旧数据的查询
+     */
+    public void enableCache() {
+        this.cacheEnabled = true;
+    }
+
     public void enableDebug() {
         debug = true;
     }
@@ -70,6 +195,21 @@ public abstract class SearchRequest {
      */
     public abstract <E extends BaseEntity> SearchSourceBuilder toSearchSourceBuilder(EntityMapping<E> entityMapping);
 
+    /**
+     * 设置只返回的字段 属性名转换为字段名 ID总是返回
+     * @param sourceBuilder 搜索条件
+     */
+    protected void fetchSource(SearchSourceBuilder sourceBuilder) {
+        if (this.includeFields == null || this.includeFields.length == 0) {
+            return;
+        }
+        String[] includes = Stream.concat(Stream.of(BaseEntity.ID), Arrays.stream(this.includeFields))
+                                  .map(x -> OrmUtils.getEntityFieldName(entityClass, x))
+                                  .distinct()
+                                  .toArray(String[]::new);
+        sourceBuilder.fetchSource(includes, null);
+    }
+
     /**
      * 获取分页设置
      */
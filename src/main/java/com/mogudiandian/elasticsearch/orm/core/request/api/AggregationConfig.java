@@ -0,0 +1,223 @@
+package com.mogudiandian.elasticsearch.orm.core.request.api;
+
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
+import com.mogudiandian.elasticsearch.orm.core.response.AggregationResult;
+import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
+import lombok.Getter;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * 聚合条件
+ * 字段使用实体的属性名 不能使用搜索字段 日期直方图使用实体的生命周期字段
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Getter
+public class AggregationConfig {
+
+    /**
+     * terms默认返回的桶数
+     */
+    private static final int DEFAULT_TERMS_SIZE = 10;
+
+    /**
+     * 聚合类型
+     */
+    public enum Type {
+        TERMS, DATE_HISTOGRAM, SUM, AVG, MIN, MAX, CARDINALITY
+    }
+
+    /**
+     * 聚合名称 结果中按名称获取
+     */
+    private final String name;
+
+    private final Type type;
+
+    /**
+     * 属性名 日期直方图不需要
+     */
+    private final String field;
+
+    /**
+     * terms返回的桶数
+     */
+    private int size = DEFAULT_TERMS_SIZE;
+
+    /**
+     * 日期直方图的间隔
+     */
+    private DateHistogramInterval interval;
+
+    /**
+     * 子聚合 只有terms和日期直方图可以有
+     */
+    private final List<AggregationConfig> subAggregations = new LinkedList<>();
+
+    private AggregationConfig(String name, Type type, String field) {
+        this.name = Objects.requireNonNull(name, "聚合名称不能为空");
+        this.type = type;
+        this.field = field;
+    }
+
+    public static AggregationConfig terms(String name, String field) {
+        return new AggregationConfig(name, Type.TERMS, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    public static AggregationConfig terms(String name, String field, int size) {
+        AggregationConfig config = terms(name, field);
+        config.size = size;
+        return config;
+    }
+
+    /**
+     * 按生命周期字段的日期直方图 按系统时区划分
+     * @param name 聚合名称
+     * @param interval 间隔 例如 DateHistogramInterval.DAY
+     * @return 聚合条件
+     */
+    public static AggregationConfig dateHistogram(String name, DateHistogramInterval interval) {
+        AggregationConfig config = new AggregationConfig(name, Type.DATE_HISTOGRAM, null);
+        config.interval = Objects.requireNonNull(interval, "间隔不能为空");
+        return config;
+    }
+
+    public static AggregationConfig sum(String name, String field) {
+        return new AggregationConfig(name, Type.SUM, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    public static AggregationConfig avg(String name, String field) {
+        return new AggregationConfig(name, Type.AVG, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    public static AggregationConfig min(String name, String field) {
+        return new AggregationConfig(name, Type.MIN, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    public static AggregationConfig max(String name, String field) {
+        return new AggregationConfig(name, Type.MAX, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    public static AggregationConfig cardinality(String name, String field) {
+        return new AggregationConfig(name, Type.CARDINALITY, Objects.requireNonNull(field, "聚合字段不能为空"));
+    }
+
+    /**
+     * 添加子聚合 在每个桶中计算
+     * @param subAggregations 子聚合 可变长
+     * @return this
+     */
+    public AggregationConfig addSubAggregations(AggregationConfig... subAggregations) {
+        if (!isBucket()) {
+            throw new IllegalStateException("aggregation " + name + " of type " + type + " can not have sub aggregations");
+        }
+        Collections.addAll(this.subAggregations, subAggregations);
+        return this;
+    }
+
+    /**
+     * 是否是分桶的聚合
+     */
+    public boolean isBucket() {
+        return type == Type.TERMS || type == Type.DATE_HISTOGRAM;
+    }
+
+    /**
+     * 生成ES的聚合 搜索字段是分词的text字段 不能用于聚合
+     * @param entityClass 实体类
+     * @param entityMapping 实体映射
+     * @return ES的聚合
+     */
+    public AggregationBuilder toAggregationBuilder(Class<? extends BaseEntity> entityClass, EntityMapping<?> entityMapping) {
+        if (field != null && OrmUtils.isSearchField(entityClass, field)) {
+            throw new IllegalArgumentException("aggregation " + name + " can not use search field " + field + " of class " + entityClass.getName() + ", it is an analyzed text field");
+        }
+        String fieldName = field != null ? OrmUtils.getEntityFieldName(entityClass, field) : null;
+
+        AggregationBuilder builder;
+        switch (type) {
+            case TERMS:
+                builder = AggregationBuilders.terms(name).field(fieldName).size(size);
+                break;
+            case DATE_HISTOGRAM:
+                String lifecycleField = entityMapping.lifecycleField();
+                if (lifecycleField == null) {
+                    throw new IllegalStateException("Class " + entityClass.getName() + " has no lifecycle field for date histogram " + name);
+                }
+                builder = AggregationBuilders.dateHistogram(name).field(lifecycleField).calendarInterval(interval).timeZone(ZoneId.systemDefault());
+                break;
+            case SUM:
+                builder = AggregationBuilders.sum(name).field(fieldName);
+                break;
+            case AVG:
+                builder = AggregationBuilders.avg(name).field(fieldName);
+                break;
+            case MIN:
+                builder = AggregationBuilders.min(name).field(fieldName);
+                break;
+            case MAX:
+                builder = AggregationBuilders.max(name).field(fieldName);
+                break;
+            case CARDINALITY:
+                builder = AggregationBuilders.cardinality(name).field(fieldName);
+                break;
+            default:
+                throw new IllegalStateException("unsupported aggregation type " + type);
+        }
+
+        for (AggregationConfig subAggregation : subAggregations) {
+            builder.subAggregation(subAggregation.toAggregationBuilder(entityClass, entityMapping));
+        }
+        return builder;
+    }
+
+    /**
+     * 从ES的聚合结果中取出本聚合的结果
+     * @param aggregations ES的聚合结果
+     * @return 聚合结果 没有时返回null
+     */
+    public AggregationResult toResult(Aggregations aggregations) {
+        Aggregation aggregation = aggregations != null ? aggregations.get(name) : null;
+        if (aggregation == null) {
+            return null;
+        }
+
+        AggregationResult result = new AggregationResult(name, type.name());
+        if (aggregation instanceof MultiBucketsAggregation) {
+            List<AggregationResult.Bucket> buckets = new ArrayList<>();
+            for (MultiBucketsAggregation.Bucket bucket : ((MultiBucketsAggregation) aggregation).getBuckets()) {
+                Object key = bucket.getKey();
+                // 日期直方图的key转换为Date 与生命周期属性一致
+                if (key instanceof ZonedDateTime) {
+                    key = Date.from(((ZonedDateTime) key).toInstant());
+                }
+                Map<String, AggregationResult> subResults = new LinkedHashMap<>();
+                for (AggregationConfig subAggregation : subAggregations) {
+                    AggregationResult subResult = subAggregation.toResult(bucket.getAggregations());
+                    if (subResult != null) {
+                        subResults.put(subAggregation.getName(), subResult);
+                    }
+                }
+                buckets.add(new AggregationResult.Bucket(key, bucket.getKeyAsString(), bucket.getDocCount(), subResults));
+            }
+            result.setBuckets(buckets);
+        } else if (aggregation instanceof NumericMetricsAggregation.SingleValue) {
+            // 没有文档时min/max为无穷 avg为NaN
+            double value = ((NumericMetricsAggregation.SingleValue) aggregation).value();
+            result.setValue(Double.isFinite(value) ? value : null);
+        }
+        return result;
+    }
+}
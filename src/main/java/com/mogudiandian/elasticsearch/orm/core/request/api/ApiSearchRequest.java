@@ -2,19 +2,23 @@ package com.mogudiandian.elasticsearch.orm.core.request.api;
 
 import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
 import com.mogudiandian.elasticsearch.orm.core.request.SearchRequest;
+import com.mogudiandian.elasticsearch.orm.core.response.AggregationResult;
 import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 import org.elasticsearch.index.query.*;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 搜索条件
@@ -44,6 +48,18 @@ public abstract class ApiSearchRequest extends SearchRequest {
     @Getter
     private List<SortConfig> sorts;
 
+    /**
+     * 聚合
+     */
+    @Getter
+    private List<AggregationConfig> aggregations;
+
+    /**
+     * 是否只返回聚合 不返回命中
+     */
+    @Getter
+    private boolean aggregationsOnly;
+
     /**
      * 分页
      */
@@ -138,6 +154,19 @@ public abstract class ApiSearchRequest extends SearchRequest {
                          .size(this.getPagination().getPageSize());
         }
 
+        if (this.aggregations != null) {
+            for (AggregationConfig aggregation : this.aggregations) {
+                sourceBuilder.aggregation(aggregation.toAggregationBuilder(entityClass, entityMapping));
+            }
+        }
+
+        // 只要聚合时不取命中
+        if (this.aggregationsOnly) {
+            sourceBuilder.from(0).size(0);
+        }
+
+        fetchSource(sourceBuilder);
+
         return sourceBuilder;
     }
 
@@ -152,6 +181,43 @@ public abstract class ApiSearchRequest extends SearchRequest {
         Collections.addAll(this.sorts, sorts);
     }
 
+    /**
+     * 添加聚合
+     * @param aggregations 聚合 可变长
+     */
+    public void addAggregations(AggregationConfig... aggregations) {
+        if (this.aggregations == null) {
+            this.aggregations = new LinkedList<>();
+        }
+        Collections.addAll(this.aggregations, aggregations);
+    }
+
+    /**
+     * 只返回聚合 不返回命中
+     */
+    public void enableAggregationsOnly() {
+        this.aggregationsOnly = true;
+    }
+
+    /**
+     * 将ES的聚合结果转换为聚合结果
+     * @param aggregations ES的聚合结果
+     * @return 聚合名称 -> 聚合结果 没有聚合时返回null
+     */
+    public Map<String, AggregationResult> toAggregationResults(Aggregations aggregations) {
+        if (this.aggregations == null || this.aggregations.isEmpty()) {
+            return null;
+        }
+        Map<String, AggregationResult> results = new LinkedHashMap<>();
+        for (AggregationConfig aggregation : this.aggregations) {
+            AggregationResult result = aggregation.toResult(aggregations);
+            if (result != null) {
+                results.put(aggregation.getName(), result);
+            }
+        }
+        return results;
+    }
+
     /**
      * 将搜索条件拼接为QueryBuilder
      * @return ES的Query
@@ -12,11 +12,13 @@ import java.util.Date;
  * where 支持复杂(嵌套)查询 不支持子查询
  * order by
  * limit
+ * 开头可以写 select 属性 只查询这些属性
  * 例如
  * where a = b and c = ? and (e = f or (g = h and i = j))
  * where a = b and c = ? order by x asc, y desc
  * where a = b limit ?, ?
  * where a = b and c = ? order by x asc, y desc limit x, y
+ * select a, b where c = ?
  *
  * @author Joshua Sun
  * @since 1.0.0
@@ -9,7 +9,9 @@ import com.mogudiandian.elasticsearch.orm.core.request.SearchRequest;
 import com.mogudiandian.elasticsearch.orm.core.request.api.HighlightConfig;
 import com.mogudiandian.elasticsearch.orm.core.request.api.PaginationConfig;
 import com.mogudiandian.elasticsearch.orm.core.request.sql.core.QueryMaker;
+import com.mogudiandian.elasticsearch.orm.core.request.sql.core.domain.Field;
 import com.mogudiandian.elasticsearch.orm.core.request.sql.core.domain.Select;
+import com.mogudiandian.elasticsearch.orm.core.request.sql.core.domain.hints.HintType;
 import com.mogudiandian.elasticsearch.orm.core.request.sql.core.parser.ElasticSqlExprParser;
 import com.mogudiandian.elasticsearch.orm.core.request.sql.core.parser.SqlParser;
 import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
@@ -17,6 +19,7 @@ import com.mogudiandian.elasticsearch.orm.core.request.sql.core.domain.Order;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.Getter;
 import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.script.Script;
@@ -26,6 +29,10 @@ import org.elasticsearch.search.sort.ScriptSortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * 搜索条件
  *
@@ -34,6 +41,16 @@ import org.elasticsearch.search.sort.SortOrder;
  */
 public class SqlSearchRequest extends SearchRequest {
 
+    /**
+     * 条件开头的hint 例如 ROUTINGS、PREFERENCE
+     */
+    private static final Pattern LEADING_HINTS = Pattern.compile("^\\s*((?:/\\*!.*?\\*/\\s*)+)", Pattern.DOTALL);
+
+    /**
+     * 条件开头的查询字段 例如 select a, b where ...
+     */
+    private static final Pattern LEADING_SELECT = Pattern.compile("^\\s*select\\s+(.+?)(?=\\s+(?:where|order|limit)\\b|\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * YQL
      */
@@ -91,6 +108,32 @@ public class SqlSearchRequest extends SearchRequest {
         return highlight;
     }
 
+    /**
+     * 将条件补全为完整的查询语句
+     * @param condition 条件 开头可以有hint和查询字段
+     * @param indexName 索引名
+     * @return 查询语句
+     */
+    static String toSelect(String condition, String indexName) {
+        // hint只能写在select之后 将条件开头的hint移到select之后
+        String hints = "";
+        Matcher matcher = LEADING_HINTS.matcher(condition);
+        if (matcher.find()) {
+            hints = matcher.group(1);
+            condition = condition.substring(matcher.end());
+        }
+
+        // 查询字段 没有写时查询所有字段
+        String fields = "*";
+        matcher = LEADING_SELECT.matcher(condition);
+        if (matcher.find()) {
+            fields = matcher.group(1);
+            condition = condition.substring(matcher.end());
+        }
+
+        return "select " + hints + fields + " from " + indexName + " " + condition;
+    }
+
     /**
      * 生成搜索条件
      *
@@ -104,7 +147,7 @@ public class SqlSearchRequest extends SearchRequest {
             throw new NullPointerException("yql must be set");
         }
 
-        String sql = "select * from " + getIndexName() + " " + this.sql.toString();
+        String sql = toSelect(this.sql.toString(), getIndexName());
 
         // 将SQL解析成AST，即SQLQueryExpr sqlExpr就是AST了，下面的代码就开始访问AST、从中获取token
         SQLExprParser parser = new ElasticSqlExprParser(sql);
@@ -117,6 +160,29 @@ public class SqlSearchRequest extends SearchRequest {
         }
         Select select = new SqlParser().parseSelect(sqlExpr);
 
+        // 路由 代码中设置的优先
+        if (this.routings == null || this.routings.length == 0) {
+            select.getHints()
+                  .stream()
+                  .filter(x -> x.getType() == HintType.ROUTINGS && x.getParams() != null)
+                  .findFirst()
+                  .ifPresent(x -> this.routings = Arrays.stream(x.getParams()).map(y -> y.toString().trim()).toArray(String[]::new));
+        }
+
+        // 偏好 代码中设置的优先
+        if (this.preference == null) {
+            select.getHints()
+                  .stream()
+                  .filter(x -> x.getType() == HintType.PREFERENCE && x.getParams() != null && x.getParams().length > 0 && x.getParams()[0] != null)
+                  .findFirst()
+                  .ifPresent(x -> this.preference = StringUtils.strip(x.getParams()[0].toString().trim(), "'\""));
+        }
+
+        // 查询字段 代码中设置的优先
+        if ((this.includeFields == null || this.includeFields.length == 0) && !select.getFields().isEmpty() && !select.isSelectAll()) {
+            this.includeFields = select.getFields().stream().map(Field::getName).toArray(String[]::new);
+        }
+
         SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
 
         BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
@@ -157,6 +223,8 @@ public class SqlSearchRequest extends SearchRequest {
                          .size(this.getPagination().getPageSize());
         }
 
+        fetchSource(sourceBuilder);
+
         return sourceBuilder;
     }
 
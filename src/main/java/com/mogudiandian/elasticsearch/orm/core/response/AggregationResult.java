@@ -0,0 +1,81 @@
+package com.mogudiandian.elasticsearch.orm.core.response;
+
+import com.alibaba.fastjson.JSON;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聚合结果
+ * 分桶的聚合(terms、日期直方图)有buckets 指标聚合(sum、avg、min、max、cardinality)有value
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Getter
+@Setter
+public class AggregationResult {
+
+    /**
+     * 聚合名称
+     */
+    private String name;
+
+    /**
+     * 聚合类型
+     */
+    private String type;
+
+    /**
+     * 指标的值 没有文档时为空
+     */
+    private Double value;
+
+    /**
+     * 桶
+     */
+    private List<Bucket> buckets;
+
+    public AggregationResult(String name, String type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    @Override
+    public String toString() {
+        return JSON.toJSONString(this);
+    }
+
+    /**
+     * 桶
+     */
+    @Getter
+    public static class Bucket {
+
+        /**
+         * 桶的key terms为字段值 日期直方图为Date
+         */
+        private final Object key;
+
+        private final String keyAsString;
+
+        /**
+         * 桶中的文档数
+         */
+        private final long docCount;
+
+        /**
+         * 子聚合的结果
+         */
+        private final Map<String, AggregationResult> aggregations;
+
+        public Bucket(Object key, String keyAsString, long docCount, Map<String, AggregationResult> aggregations) {
+            this.key = key;
+            this.keyAsString = keyAsString;
+            this.docCount = docCount;
+            this.aggregations = aggregations;
+        }
+    }
+}
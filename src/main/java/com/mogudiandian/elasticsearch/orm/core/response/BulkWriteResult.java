@@ -0,0 +1,132 @@
+package com.mogudiandian.elasticsearch.orm.core.response;
+
+import com.alibaba.fastjson.JSON;
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import lombok.Getter;
+import lombok.Setter;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * ES批量写入结果
+ * @param <E> 实体类型
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Getter
+@Setter
+public class BulkWriteResult<E extends BaseEntity> {
+
+    /**
+     * document集合 顺序与实体一致 更新时为局部文档 脚本更新时为空
+     */
+    private List<Map<String, Object>> documents;
+
+    /**
+     * 重试后仍然失败的条目
+     */
+    private List<FailedItem<E>> failures;
+
+    /**
+     * 删除时文档不存在的ID
+     */
+    private List<String> notFoundIds;
+
+    /**
+     * 重试的条目数
+     */
+    private int retries;
+
+    /**
+     * 内容没有变化而跳过的条目数
+     */
+    private int skipped;
+
+    /**
+     * 被同一文档后面的版本合并掉的条目数
+     */
+    private int coalesced;
+
+    public BulkWriteResult(List<Map<String, Object>> documents) {
+        this.documents = documents;
+        this.failures = new ArrayList<>();
+        this.notFoundIds = new ArrayList<>();
+    }
+
+    public BulkWriteResult<E> addFailure(int index, E entity, String id, RestStatus status, String message) {
+        failures.add(new FailedItem<>(index, entity, id, status, message));
+        return this;
+    }
+
+    public BulkWriteResult<E> addNotFound(String id) {
+        notFoundIds.add(id);
+        return this;
+    }
+
+    /**
+     * 是否有失败的条目
+     */
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * 拼接所有失败条目的信息
+     */
+    public String buildFailureMessage() {
+        return failures.stream()
+                       .map(x -> "\n[" + x.getIndex() + "]: id [" + x.getId() + "], status [" + x.getStatus() + "], message [" + x.getMessage() + "]")
+                       .collect(Collectors.joining("", "failure in bulk execution:", ""));
+    }
+
+    @Override
+    public String toString() {
+        return JSON.toJSONString(this);
+    }
+
+    /**
+     * 失败的条目
+     * @param <E> 实体类型
+     */
+    @Getter
+    public static class FailedItem<E extends BaseEntity> {
+
+        /**
+         * 在实体集合中的位置
+         */
+        private final int index;
+
+        /**
+         * 实体 按ID更新时为空
+         */
+        private final E entity;
+
+        /**
+         * 文档ID
+         */
+        private final String id;
+
+        /**
+         * ES返回的状态
+         */
+        private final RestStatus status;
+
+        /**
+         * 失败信息
+         */
+        private final String message;
+
+        public FailedItem(int index, E entity, String id, RestStatus status, String message) {
+            this.index = index;
+            this.entity = entity;
+            this.id = id;
+            this.status = status;
+            this.message = message;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.mogudiandian.elasticsearch.orm.core.response;
 
-import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -9,14 +8,14 @@ import java.util.Map;
 
 /**
  * 每一个匹配的记录
- * @param <E> 实体类型
+ * @param <E> 实体或投影类型
  *
  * @author Joshua Sun
  * @since 1.0.0
  */
 @Getter
 @Setter
-public class MatchRecord<E extends BaseEntity> {
+public class MatchRecord<E> {
 
     /**
      * 实体
@@ -0,0 +1,93 @@
+package com.mogudiandian.elasticsearch.orm.core.response;
+
+import com.alibaba.fastjson.JSON;
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ES批量搜索结果 顺序与搜索条件一致
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Getter
+public class MultiSearchResult {
+
+    /**
+     * 每个搜索条件的结果
+     */
+    private final List<Item> items;
+
+    public MultiSearchResult(int size) {
+        this.items = new ArrayList<>(size);
+    }
+
+    public MultiSearchResult addResult(SearchResult<?> result) {
+        items.add(new Item(result, null));
+        return this;
+    }
+
+    public MultiSearchResult addFailure(String failureMessage) {
+        items.add(new Item(null, failureMessage));
+        return this;
+    }
+
+    /**
+     * 第index个搜索条件的结果
+     * @param index 搜索条件的位置
+     * @param <E> 实体类型
+     * @return 搜索结果 失败时抛出异常
+     */
+    public <E extends BaseEntity> SearchResult<E> getResult(int index) {
+        Item item = items.get(index);
+        if (item.isFailed()) {
+            throw new RuntimeException("search request [" + index + "] failure, message is: " + item.getFailureMessage());
+        }
+        return (SearchResult<E>) item.getResult();
+    }
+
+    /**
+     * 是否有失败的条目
+     */
+    public boolean hasFailures() {
+        return items.stream().anyMatch(Item::isFailed);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public String toString() {
+        return JSON.toJSONString(this);
+    }
+
+    /**
+     * 单个搜索条件的结果
+     */
+    @Getter
+    public static class Item {
+
+        /**
+         * 搜索结果 失败时为空
+         */
+        private final SearchResult<?> result;
+
+        /**
+         * 失败信息 成功时为空
+         */
+        private final String failureMessage;
+
+        public Item(SearchResult<?> result, String failureMessage) {
+            this.result = result;
+            this.failureMessage = failureMessage;
+        }
+
+        public boolean isFailed() {
+            return failureMessage != null;
+        }
+    }
+}
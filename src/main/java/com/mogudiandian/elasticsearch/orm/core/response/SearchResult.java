@@ -1,23 +1,23 @@
 package com.mogudiandian.elasticsearch.orm.core.response;
 
 import com.alibaba.fastjson.JSON;
-import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * ES搜索结果
- * @param <E> 实体类型
+ * @param <E> 实体或投影类型
  *
  * @author Joshua Sun
  * @since 1.0.0
  */
 @Getter
 @Setter
-public class SearchResult<E extends BaseEntity> {
+public class SearchResult<E> {
 
     /**
      * 查询语句
@@ -35,10 +35,25 @@ public class SearchResult<E extends BaseEntity> {
     private Integer pageSize;
 
     /**
-     * 总记录数
+     * 总记录数 不统计时为空 totalCountLowerBound为true时是下限
      */
     private Long totalCount;
 
+    /**
+     * 总记录数是否只是下限 命中数超过统计上限时为true
+     */
+    private boolean totalCountLowerBound;
+
+    /**
+     * 下一页的游标 用游标翻页且还有下一页时才有
+     */
+    private String nextCursor;
+
+    /**
+     * 聚合名称 -> 聚合结果 没有聚合时为空
+     */
+    private Map<String, AggregationResult> aggregations;
+
     /**
      * 实体和分数
      */
@@ -67,7 +82,16 @@ public class SearchResult<E extends BaseEntity> {
     }
 
     /**
-     * 总页数
+     * 按名称获取聚合结果
+     * @param name 聚合名称
+     * @return 聚合结果 没有时返回null
+     */
+    public AggregationResult getAggregation(String name) {
+        return aggregations != null ? aggregations.get(name) : null;
+    }
+
+    /**
+     * 总页数 totalCountLowerBound为true时是下限
      */
     public Long getTotalPages() {
         if (totalCount == null || pageSize == null) {
@@ -0,0 +1,111 @@
+package com.mogudiandian.elasticsearch.orm.core.response;
+
+import com.alibaba.fastjson.JSON;
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ES流式写入结果 只有统计 不保留document
+ * @param <E> 实体类型
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+@Getter
+@Setter
+public class StreamWriteResult<E extends BaseEntity> {
+
+    /**
+     * 最多保留的失败条目数
+     */
+    private static final int MAX_FAILURE_SAMPLES = 100;
+
+    /**
+     * 读取的实体数
+     */
+    private long total;
+
+    /**
+     * 写入成功的条目数 包括跳过和合并的
+     */
+    private long succeeded;
+
+    /**
+     * 重试后仍然失败的条目数
+     */
+    private long failed;
+
+    /**
+     * 内容没有变化而跳过的条目数
+     */
+    private long skipped;
+
+    /**
+     * 被同一文档后面的版本合并掉的条目数
+     */
+    private long coalesced;
+
+    /**
+     * 重试的条目数
+     */
+    private long retries;
+
+    /**
+     * 耗时 毫秒
+     */
+    private long took;
+
+    /**
+     * 部分失败的条目 位置是在流中的位置
+     */
+    private List<BulkWriteResult.FailedItem<E>> failureSamples = new ArrayList<>();
+
+    /**
+     * 合并一批的写入结果
+     * @param offset 这一批在流中的起始位置
+     * @param size 这一批的条目数
+     * @param result 这一批的写入结果
+     */
+    public synchronized void merge(long offset, int size, BulkWriteResult<E> result) {
+        failed += result.getFailures().size();
+        succeeded += size - result.getFailures().size();
+        skipped += result.getSkipped();
+        coalesced += result.getCoalesced();
+        retries += result.getRetries();
+        for (BulkWriteResult.FailedItem<E> failure : result.getFailures()) {
+            if (failureSamples.size() >= MAX_FAILURE_SAMPLES) {
+                break;
+            }
+            failureSamples.add(new BulkWriteResult.FailedItem<>((int) (offset + failure.getIndex()), failure.getEntity(), failure.getId(), failure.getStatus(), failure.getMessage()));
+        }
+    }
+
+    /**
+     * 整批失败
+     * @param size 这一批的条目数
+     * @param e 异常
+     */
+    public synchronized void fail(int size, Throwable e) {
+        failed += size;
+        if (failureSamples.size() < MAX_FAILURE_SAMPLES) {
+            failureSamples.add(new BulkWriteResult.FailedItem<>(-1, null, null, null, e.toString()));
+        }
+    }
+
+    /**
+     * 是否有失败的条目
+     */
+    public boolean hasFailures() {
+        return failed > 0;
+    }
+
+    @Override
+    public String toString() {
+        return JSON.toJSONString(this);
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.mogudiandian.elasticsearch.orm.core.util;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 翻页游标工具 游标是最后一条命中的排序值 对调用方不透明
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public final class CursorUtils {
+
+    private CursorUtils() {
+    }
+
+    /**
+     * 将排序值编码为游标
+     * @param sortValues 最后一条命中的排序值
+     * @return 游标
+     */
+    public static String encode(Object[] sortValues) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(JSON.toJSONString(sortValues).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 将游标解码为排序值
+     * @param cursor 游标
+     * @return 排序值 用于search_after
+     */
+    public static Object[] decode(String cursor) {
+        JSONArray array;
+        try {
+            array = JSON.parseArray(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("illegal cursor: " + cursor, e);
+        }
+        Object[] sortValues = new Object[array.size()];
+        for (int i = 0; i < sortValues.length; i++) {
+            Object value = array.get(i);
+            // search_after只接受基本类型 fastjson解析出的大数需要转换
+            if (value instanceof BigDecimal) {
+                value = ((BigDecimal) value).doubleValue();
+            } else if (value instanceof BigInteger) {
+                value = ((BigInteger) value).longValue();
+            }
+            sortValues[i] = value;
+        }
+        return sortValues;
+    }
+
+}
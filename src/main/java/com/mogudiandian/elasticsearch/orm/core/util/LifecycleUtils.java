@@ -41,6 +41,20 @@ public final class LifecycleUtils {
             return null;
         }
 
+        return convertPropertyValue(property, o);
+    }
+
+    /**
+     * 转换属性的值 用于将实体属性转换为文档字段
+     * @param property 属性
+     * @param o 属性的值 不能为空
+     * @return 属性的值 类型为long表示的毫秒数
+     */
+    public static Object convertPropertyValue(EntityProperty property, Object o) {
+        if (property == null || !property.isForLifecycle() || o == null) {
+            throw new IllegalStateException();
+        }
+
         Class<?> type = property.getType();
         if (type == Long.class) {
             return property.getLifecycleField().timeUnit().toMillis((Long) o);
@@ -3,6 +3,8 @@ package com.mogudiandian.elasticsearch.orm.core.util;
 import com.mogudiandian.elasticsearch.orm.core.EntityMapping;
 import com.mogudiandian.elasticsearch.orm.core.EntityProperty;
 import com.mogudiandian.elasticsearch.orm.core.annotation.Index;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Projection;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Version;
 import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
@@ -10,8 +12,10 @@ import org.apache.commons.lang3.reflect.FieldUtils;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.ResolvableType;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.core.type.filter.AssignableTypeFilter;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -60,11 +64,31 @@ public final class OrmUtils {
      */
     private static Map<Class<? extends BaseEntity>, Map<String, EntityProperty>> entityPropertyFields = new HashMap<>();
 
+    /**
+     * BaseEntity子类中的版本属性
+     */
+    private static Map<Class<? extends BaseEntity>, EntityProperty> entityVersionProperties = new HashMap<>();
+
+    /**
+     * BaseEntity子类中的primary_term属性
+     */
+    private static Map<Class<? extends BaseEntity>, EntityProperty> entityPrimaryTermProperties = new HashMap<>();
+
+    /**
+     * BaseEntity子类中的路由属性
+     */
+    private static Map<Class<? extends BaseEntity>, EntityProperty> entityRoutingProperties = new HashMap<>();
+
     /**
      * 所有的mapping
      */
     private static Map<Class<? extends BaseEntity>, Class<? extends EntityMapping<? extends BaseEntity>>> entityMappings = new HashMap<>();
 
+    /**
+     * 投影类 -> 属性名
+     */
+    private static Map<Class<?>, List<String>> projectionProperties = new HashMap<>();
+
     /**
      * 初始化方法，必须提前预热
      */
@@ -77,6 +101,7 @@ public final class OrmUtils {
         ClassPathScanningCandidateComponentProvider provider = new ClassPathScanningCandidateComponentProvider(false);
         provider.addIncludeFilter(new AssignableTypeFilter(BaseEntity.class));
         provider.addIncludeFilter(new AssignableTypeFilter(EntityMapping.class));
+        provider.addIncludeFilter(new AnnotationTypeFilter(Projection.class));
 
         Set<BeanDefinition> components = provider.findCandidateComponents(basePackage);
         try {
@@ -110,6 +135,17 @@ public final class OrmUtils {
                         throw new RuntimeException("Class " + component.getBeanClassName() + " has more than 1 lifecycle fields");
                     }
 
+                    initVersionProperties(entityClass, propertyList);
+
+                    // 只能有一个路由字段
+                    List<EntityProperty> routingProperties = propertyList.stream().filter(EntityProperty::isForRouting).collect(Collectors.toList());
+                    if (routingProperties.size() > 1) {
+                        throw new RuntimeException("Class " + component.getBeanClassName() + " has more than 1 routing fields");
+                    }
+                    if (!routingProperties.isEmpty()) {
+                        entityRoutingProperties.put(entityClass, routingProperties.get(0));
+                    }
+
                     // 实体类型对应属性
                     entityPropertiesMap.put(entityClass, propertyList);
 
@@ -130,6 +166,12 @@ public final class OrmUtils {
                         entityPropertyFieldNames.get(entityClass).put(propertyName, fieldName);
                         entityPropertyFields.get(entityClass).put(propertyName, entityProperty);
                     }
+                } else if (clazz.isAnnotationPresent(Projection.class)) {
+                    // 处理投影类 实体类在同一次扫描中 放到最后校验
+                    projectionProperties.put(clazz, Arrays.stream(FieldUtils.getAllFields(clazz))
+                                                          .filter(x -> !Modifier.isStatic(x.getModifiers()) && !Modifier.isTransient(x.getModifiers()))
+                                                          .map(Field::getName)
+                                                          .collect(Collectors.toList()));
                 } else if (EntityMapping.class.isAssignableFrom(clazz) && clazz != EntityMapping.class) {
                     // 处理实体类映射
                     ResolvableType resolvableType = ResolvableType.forClass(clazz);
@@ -145,12 +187,63 @@ public final class OrmUtils {
                     }
                 }
             }
+
+            // 投影类的属性必须是实体的属性
+            for (Map.Entry<Class<?>, List<String>> entry : projectionProperties.entrySet()) {
+                Class<? extends BaseEntity> entityClass = entry.getKey().getAnnotation(Projection.class).value();
+                Map<String, EntityProperty> properties = entityPropertyFields.get(entityClass);
+                if (properties == null) {
+                    throw new RuntimeException("Projection class " + entry.getKey().getName() + " refers to unknown entity class " + entityClass.getName());
+                }
+                for (String propertyName : entry.getValue()) {
+                    if (!properties.containsKey(propertyName) && !BaseEntity.ID.equals(propertyName)) {
+                        throw new RuntimeException("Projection class " + entry.getKey().getName() + " has property " + propertyName + " which is not in " + entityClass.getName());
+                    }
+                }
+            }
             log.info("{} initialized...", OrmUtils.class);
         } catch (ClassNotFoundException e) {
             log.error("{} init throws ", OrmUtils.class, e);
         }
     }
 
+    /**
+     * 校验并记录实体的版本属性
+     * @param entityClass 实体类型
+     * @param propertyList 实体的属性
+     */
+    private static void initVersionProperties(Class<? extends BaseEntity> entityClass, List<EntityProperty> propertyList) {
+        List<EntityProperty> versionProperties = propertyList.stream().filter(EntityProperty::isForVersion).collect(Collectors.toList());
+        List<EntityProperty> primaryTermProperties = propertyList.stream().filter(EntityProperty::isForPrimaryTerm).collect(Collectors.toList());
+
+        // 只能有一个版本字段和一个primary_term字段
+        if (versionProperties.size() > 1 || primaryTermProperties.size() > 1) {
+            throw new RuntimeException("Class " + entityClass.getName() + " has more than 1 version or primary term fields");
+        }
+
+        EntityProperty versionProperty = versionProperties.isEmpty() ? null : versionProperties.get(0);
+        EntityProperty primaryTermProperty = primaryTermProperties.isEmpty() ? null : primaryTermProperties.get(0);
+
+        // 乐观锁需要seq_no和primary_term成对出现
+        boolean seqNo = versionProperty != null && versionProperty.getVersion().value() == Version.Type.SEQ_NO;
+        if (seqNo != (primaryTermProperty != null)) {
+            throw new RuntimeException("Class " + entityClass.getName() + " must declare @Version(SEQ_NO) together with @PrimaryTerm");
+        }
+
+        for (EntityProperty property : Arrays.asList(versionProperty, primaryTermProperty)) {
+            if (property != null && property.getType() != Long.class && property.getType() != long.class) {
+                throw new RuntimeException("Version field " + property.getName() + " of class " + entityClass.getName() + " must be Long/long");
+            }
+        }
+
+        if (versionProperty != null) {
+            entityVersionProperties.put(entityClass, versionProperty);
+        }
+        if (primaryTermProperty != null) {
+            entityPrimaryTermProperties.put(entityClass, primaryTermProperty);
+        }
+    }
+
     /**
      * 实体类型是否可接受
      * @param entityClass 实体类型
@@ -222,6 +315,74 @@ public final class OrmUtils {
                        .orElse(null);
     }
 
+    /**
+     * 获取实体的版本属性
+     * @param entityClass 实体类
+     * @return 版本属性 没有时返回null
+     */
+    public static EntityProperty getVersionProperty(Class<? extends BaseEntity> entityClass) {
+        return entityVersionProperties.get(entityClass);
+    }
+
+    /**
+     * 获取实体的primary_term属性
+     * @param entityClass 实体类
+     * @return primary_term属性 没有时返回null
+     */
+    public static EntityProperty getPrimaryTermProperty(Class<? extends BaseEntity> entityClass) {
+        return entityPrimaryTermProperties.get(entityClass);
+    }
+
+    /**
+     * 实体是否有路由属性 有路由属性的实体按ID操作时需要给出路由
+     * @param entityClass 实体类
+     * @return 是否有路由属性
+     */
+    public static boolean hasRouting(Class<? extends BaseEntity> entityClass) {
+        return entityRoutingProperties.containsKey(entityClass);
+    }
+
+    /**
+     * 校验按ID操作时不需要路由
+     * @param entityClass 实体类
+     */
+    public static void requireNoRouting(Class<? extends BaseEntity> entityClass) {
+        if (hasRouting(entityClass)) {
+            throw new IllegalArgumentException("Class " + entityClass.getName() + " has @Routing property, routing is required when operating by id");
+        }
+    }
+
+    /**
+     * 获取实体的路由值
+     * @param entity 实体
+     * @return 路由值 没有路由属性或属性值为空时返回null
+     */
+    public static String getRouting(BaseEntity entity) {
+        EntityProperty routingProperty = entityRoutingProperties.get(entity.getClass());
+        if (routingProperty == null) {
+            return null;
+        }
+        Object value = routingProperty.invokeGetter(entity);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * 获取投影类的属性名
+     * @param entityClass 实体类
+     * @param projectionClass 投影类
+     * @return 属性名
+     */
+    public static List<String> getProjectionProperties(Class<? extends BaseEntity> entityClass, Class<?> projectionClass) {
+        Projection projection = projectionClass.getAnnotation(Projection.class);
+        if (projection == null || !projectionProperties.containsKey(projectionClass)) {
+            throw new IllegalArgumentException("Class " + projectionClass.getName() + " is not a scanned @Projection class");
+        }
+        if (!projection.value().isAssignableFrom(entityClass)) {
+            throw new IllegalArgumentException("Projection class " + projectionClass.getName() + " is not a projection of " + entityClass.getName());
+        }
+        return projectionProperties.get(projectionClass);
+    }
+
     /**
      * 根据实体类型获取映射
      * @param entityClass 实体类型
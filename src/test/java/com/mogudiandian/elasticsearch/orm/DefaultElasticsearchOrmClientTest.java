@@ -0,0 +1,483 @@
+package com.mogudiandian.elasticsearch.orm;
+
+import com.mogudiandian.elasticsearch.orm.configuration.ElasticsearchOrmProperties;
+import com.mogudiandian.elasticsearch.orm.core.BaseEntity;
+import com.mogudiandian.elasticsearch.orm.core.EntityMappingFinder;
+import com.mogudiandian.elasticsearch.orm.core.LazyDocument;
+import com.mogudiandian.elasticsearch.orm.core.request.api.simple.SimpleSearchRequest;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Index;
+import com.mogudiandian.elasticsearch.orm.core.response.BulkWriteResult;
+import com.mogudiandian.elasticsearch.orm.core.response.SearchResult;
+import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
+import lombok.Getter;
+import lombok.Setter;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 异步写入、批量写入的切分、合并、重试、变更检测和异步查询取消的测试
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class DefaultElasticsearchOrmClientTest {
+
+    @Index("test_document")
+    @Getter
+    @Setter
+    public static class TestDocument implements BaseEntity {
+
+        private String id;
+
+        private String name;
+
+        private Long count;
+
+        @Override
+        public String entityId() {
+            return id;
+        }
+    }
+
+    @BeforeClass
+    public static void initEntities() {
+        OrmUtils.init(DefaultElasticsearchOrmClientTest.class.getPackage().getName());
+    }
+
+    @Test
+    public void testLatestPositionsWithoutDuplicates() {
+        List<IndexRequest> writes = Arrays.asList(index("a", "1"), index("a", "2"), index("b", "1"));
+        assertArrayEquals(new int[]{0, 1, 2}, DefaultElasticsearchOrmClient.latestPositions(writes));
+    }
+
+    @Test
+    public void testLatestPositionsKeepLastOccurrence() {
+        // 保留的条目按最后一次出现的顺序: a/2 a/1 b/1
+        List<IndexRequest> writes = Arrays.asList(index("a", "1"), index("a", "2"), index("a", "1"), index("b", "1"), index("b", "1"));
+        assertArrayEquals(new int[]{1, 0, 1, 2, 2}, DefaultElasticsearchOrmClient.latestPositions(writes));
+    }
+
+    @Test
+    public void testLatestPositionsOfSameDocument() {
+        List<IndexRequest> writes = Arrays.asList(index("a", "1"), index("a", "1"), index("a", "1"));
+        assertArrayEquals(new int[]{0, 0, 0}, DefaultElasticsearchOrmClient.latestPositions(writes));
+    }
+
+    @Test
+    public void testPartitionByActions() throws Exception {
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        properties.setBulkMaxActions(2);
+        DefaultElasticsearchOrmClient client = newClient(properties);
+
+        List<DocWriteRequest<?>> writes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            writes.add(index("a", String.valueOf(i)));
+        }
+        List<BulkRequest> requests = requests(client.partitionBulkRequests(writes, RefreshPolicy.WAIT_UNTIL));
+
+        assertEquals(Arrays.asList(2, 2, 1), requests.stream().map(BulkRequest::numberOfActions).collect(Collectors.toList()));
+        requests.forEach(x -> assertEquals(RefreshPolicy.WAIT_UNTIL, x.getRefreshPolicy()));
+        // 顺序与写请求一致
+        assertEquals(writes, requests.stream().flatMap(x -> x.requests().stream()).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testPartitionByBytes() throws Exception {
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        // 正好容纳两个文档
+        properties.setBulkMaxBytes(new BulkRequest().add(index("a", "1")).add(index("a", "2")).estimatedSizeInBytes());
+        DefaultElasticsearchOrmClient client = newClient(properties);
+
+        List<DocWriteRequest<?>> writes = Arrays.asList(index("a", "1"), index("a", "2"), index("a", "3"), new DeleteRequest("a", "4"));
+        List<BulkRequest> requests = requests(client.partitionBulkRequests(writes, RefreshPolicy.NONE));
+
+        // 删除请求没有文档 不计入字节数
+        assertEquals(Arrays.asList(2, 2), requests.stream().map(BulkRequest::numberOfActions).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testPartitionOversizedDocument() throws Exception {
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        properties.setBulkMaxBytes(1);
+        DefaultElasticsearchOrmClient client = newClient(properties);
+
+        // 单个文档超过上限时单独成为一个批量请求
+        List<BulkRequest> requests = requests(client.partitionBulkRequests(Arrays.asList(index("a", "1"), index("a", "2")), RefreshPolicy.NONE));
+        assertEquals(Arrays.asList(1, 1), requests.stream().map(BulkRequest::numberOfActions).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testPartitionKeepsSameDocumentTogether() throws Exception {
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        properties.setBulkMaxActions(2);
+        DefaultElasticsearchOrmClient client = newClient(properties);
+
+        IndexRequest first = index("a", "1");
+        IndexRequest second = index("a", "1");
+        List<DocWriteRequest<?>> writes = Arrays.asList(first, index("a", "2"), index("a", "3"), second, index("b", "1"));
+        List<DefaultElasticsearchOrmClient.BulkChunk> chunks = client.partitionBulkRequests(writes, RefreshPolicy.NONE);
+
+        // 同一文档的后一次写入追加到前一次所在的请求 即使超过条数上限
+        assertEquals(2, chunks.size());
+        assertEquals(Arrays.asList(first, writes.get(1), second), chunks.get(0).request.requests());
+        assertEquals(Arrays.asList(0, 1, 3), chunks.get(0).positions);
+        assertEquals(Arrays.asList(writes.get(2), writes.get(4)), chunks.get(1).request.requests());
+        assertEquals(Arrays.asList(2, 4), chunks.get(1).positions);
+    }
+
+    @Test
+    public void testSupersededItemIsNotRetried() throws Exception {
+        List<BulkRequest> sent = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                sent.add(request);
+                List<DocWriteRequest<?>> writes = request.requests();
+                BulkItemResponse[] items = new BulkItemResponse[writes.size()];
+                for (int i = 0; i < items.length; i++) {
+                    // 第一次发送时a/1的第一条和a/2被拒绝 重试时成功
+                    items[i] = sent.size() == 1 && i != 1 ? rejected(i, writes.get(i)) : indexed(i, writes.get(i));
+                }
+                return CompletableFuture.completedFuture(new BulkResponse(items, 1));
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try {
+            BulkRequest request = new BulkRequest().add(index("a", "1")).add(index("a", "1")).add(index("a", "2"));
+            AtomicInteger retries = new AtomicInteger();
+            BulkItemResponse[] results = client.executeBulkWithRetryAsync(request, retries).get(10, TimeUnit.SECONDS);
+
+            // 只重试没有被覆盖的a/2 a/1的第一条得到第二条的响应
+            assertEquals(1, retries.get());
+            assertEquals(Collections.singletonList("2"), sent.get(1).requests().stream().map(DocWriteRequest::id).collect(Collectors.toList()));
+            assertFalse(results[0].isFailed());
+            assertSame(results[1], results[0]);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testLatestOccurrences() {
+        List<DocWriteRequest<?>> writes = Arrays.asList(index("a", "1"), index("a", "2"), index("a", "1"), new IndexRequest("a"), new IndexRequest("a"));
+        assertArrayEquals(new int[]{2, 1, 2, 3, 4}, DefaultElasticsearchOrmClient.latestOccurrences(writes));
+    }
+
+    @Test
+    public void testChangeDetectionUsesLastWriteInBatch() throws Exception {
+        List<BulkRequest> sent = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                sent.add(request);
+                return CompletableFuture.completedFuture(indexedAll(request));
+            }
+        };
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        properties.setEnableChangeDetection(true);
+        setProperties(client, properties);
+        client.init();
+        try {
+            client.addAll(Collections.singletonList(document("1", "v1")));
+            assertEquals(1, sent.size());
+
+            // 已经记录了v1 同一批中先v2后v1 最后的内容仍是v1 两条都跳过
+            BulkWriteResult<TestDocument> result = client.tryAddAll(Arrays.asList(document("1", "v2"), document("1", "v1")));
+            assertEquals(1, sent.size());
+            assertEquals(2, result.getSkipped());
+
+            // 先v1后v2 最后的内容有变化 两条都按顺序发送
+            result = client.tryAddAll(Arrays.asList(document("1", "v1"), document("1", "v2")));
+            assertEquals(2, sent.size());
+            assertEquals(2, sent.get(1).numberOfActions());
+            assertEquals(0, result.getSkipped());
+
+            // 记录的是最后一次写入的v2
+            client.addAll(Collections.singletonList(document("1", "v2")));
+            assertEquals(2, sent.size());
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testChangeDetectionWithInflightWrites() throws Exception {
+        List<BulkRequest> sent = new ArrayList<>();
+        List<CompletableFuture<BulkResponse>> responses = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                sent.add(request);
+                CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+                responses.add(future);
+                return future;
+            }
+        };
+        ElasticsearchOrmProperties properties = new ElasticsearchOrmProperties();
+        properties.setEnableChangeDetection(true);
+        setProperties(client, properties);
+        client.init();
+        try {
+            CompletableFuture<Map<String, Object>> v1 = client.addAsync(document("1", "v1"));
+            responses.get(0).complete(indexedAll(sent.get(0)));
+            v1.get(10, TimeUnit.SECONDS);
+
+            // v2写入中时再写v1 不能因为与记录的v1一致而跳过
+            CompletableFuture<Map<String, Object>> v2 = client.addAsync(document("1", "v2"));
+            CompletableFuture<Map<String, Object>> v1Again = client.addAsync(document("1", "v1"));
+            assertEquals(3, sent.size());
+
+            // 先发送的v2后完成 不能覆盖v1的记录
+            responses.get(2).complete(indexedAll(sent.get(2)));
+            responses.get(1).complete(indexedAll(sent.get(1)));
+            v2.get(10, TimeUnit.SECONDS);
+            v1Again.get(10, TimeUnit.SECONDS);
+
+            client.addAsync(document("1", "v2"));
+            assertEquals(4, sent.size());
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testAddReturnsConvertedDocument() throws Exception {
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                return CompletableFuture.completedFuture(indexedAll(request));
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try {
+            TestDocument document = document("1", "v1");
+            document.setCount(1L);
+            Map<String, Object> expected = EntityMappingFinder.find(TestDocument.class).convert(document);
+
+            // 值的类型与实体转换的一致 Long不会变成Integer
+            Map<String, Object> map = client.add(document);
+            assertTrue(map instanceof LazyDocument);
+            assertFalse(((LazyDocument) map).isBuilt());
+            assertEquals(expected, new HashMap<>(map));
+            assertEquals(Long.class, map.get("count").getClass());
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testAddAsyncDoesNotBlock() throws Exception {
+        List<BulkRequest> sent = new ArrayList<>();
+        List<CompletableFuture<BulkResponse>> responses = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                sent.add(request);
+                CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+                responses.add(future);
+                return future;
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try {
+            // 请求发出后立即返回 响应到达后才完成
+            CompletableFuture<Map<String, Object>> single = client.addAsync(document("1", "v1"));
+            CompletableFuture<List<Map<String, Object>>> batch = client.addAllAsync(Arrays.asList(document("2", "v1"), document("3", "v1")));
+            assertEquals(2, sent.size());
+            assertFalse(single.isDone());
+            assertFalse(batch.isDone());
+
+            responses.get(1).complete(indexedAll(sent.get(1)));
+            assertEquals(Arrays.asList("2", "3"), batch.get(10, TimeUnit.SECONDS).stream().map(x -> x.get("id")).collect(Collectors.toList()));
+            assertFalse(single.isDone());
+
+            responses.get(0).complete(indexedAll(sent.get(0)));
+            assertEquals("1", single.get(10, TimeUnit.SECONDS).get("id"));
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testAddAllAsyncFailure() throws Exception {
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<BulkResponse> executeBulkAsync(BulkRequest request) {
+                // 第二条失败 不可重试
+                List<DocWriteRequest<?>> writes = request.requests();
+                BulkItemResponse.Failure failure = new BulkItemResponse.Failure(writes.get(1).index(), "_doc", writes.get(1).id(), new RuntimeException("mapping error"), RestStatus.BAD_REQUEST);
+                BulkItemResponse[] items = {indexed(0, writes.get(0)), new BulkItemResponse(1, DocWriteRequest.OpType.INDEX, failure)};
+                return CompletableFuture.completedFuture(new BulkResponse(items, 1));
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try {
+            CompletableFuture<List<Map<String, Object>>> future = client.addAllAsync(Arrays.asList(document("1", "v1"), document("2", "v1")));
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RuntimeException);
+                assertTrue(e.getCause().getMessage().contains("mapping error"));
+            }
+
+            BulkWriteResult<TestDocument> result = client.tryAddAllAsync(Arrays.asList(document("1", "v1"), document("2", "v1"))).get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.getFailures().size());
+            assertEquals(1, result.getFailures().get(0).getIndex());
+            assertEquals(RestStatus.BAD_REQUEST, result.getFailures().get(0).getStatus());
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testCancelSearchAfterRefresh() throws Exception {
+        CompletableFuture<Void> refresh = new CompletableFuture<>();
+        List<CompletableFuture<SearchResponse>> searches = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<Void> refreshAsync(String indexName) {
+                return refresh;
+            }
+
+            @Override
+            CompletableFuture<SearchResponse> executeSearchAsync(org.elasticsearch.action.search.SearchRequest request) {
+                CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+                searches.add(future);
+                return future;
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try (ReadYourWrites ignored = ReadYourWrites.open()) {
+            // 写过索引 查询要等刷新后才发出
+            ReadYourWrites.markWritten("test_document");
+            CompletableFuture<SearchResult<TestDocument>> future = client.searchAsync(new SimpleSearchRequest(TestDocument.class));
+            assertTrue(searches.isEmpty());
+
+            refresh.complete(null);
+            assertEquals(1, searches.size());
+
+            // 取消结果时 刷新后发出的查询也被取消
+            future.cancel(true);
+            assertTrue(searches.get(0).isCancelled());
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void testCancelSearchBeforeRefresh() throws Exception {
+        CompletableFuture<Void> refresh = new CompletableFuture<>();
+        List<CompletableFuture<SearchResponse>> searches = new ArrayList<>();
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient() {
+            @Override
+            CompletableFuture<Void> refreshAsync(String indexName) {
+                return refresh;
+            }
+
+            @Override
+            CompletableFuture<SearchResponse> executeSearchAsync(org.elasticsearch.action.search.SearchRequest request) {
+                CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+                searches.add(future);
+                return future;
+            }
+        };
+        setProperties(client, new ElasticsearchOrmProperties());
+        client.init();
+        try (ReadYourWrites ignored = ReadYourWrites.open()) {
+            ReadYourWrites.markWritten("test_document");
+            CompletableFuture<SearchResult<TestDocument>> future = client.searchAsync(new SimpleSearchRequest(TestDocument.class));
+
+            // 刷新完成前取消 不再发出查询
+            future.cancel(true);
+            refresh.complete(null);
+            assertTrue(searches.stream().allMatch(CompletableFuture::isCancelled));
+        } finally {
+            client.destroy();
+        }
+    }
+
+    private static TestDocument document(String id, String name) {
+        TestDocument document = new TestDocument();
+        document.setId(id);
+        document.setName(name);
+        return document;
+    }
+
+    private static BulkResponse indexedAll(BulkRequest request) {
+        List<DocWriteRequest<?>> writes = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[writes.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = indexed(i, writes.get(i));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private static BulkItemResponse indexed(int itemId, DocWriteRequest<?> request) {
+        IndexResponse response = new IndexResponse(new ShardId(request.index(), "_na_", 0), "_doc", request.id(), itemId, 1, 1, true);
+        return new BulkItemResponse(itemId, DocWriteRequest.OpType.INDEX, response);
+    }
+
+    private static BulkItemResponse rejected(int itemId, DocWriteRequest<?> request) {
+        BulkItemResponse.Failure failure = new BulkItemResponse.Failure(request.index(), "_doc", request.id(), new RuntimeException("rejected"), RestStatus.TOO_MANY_REQUESTS);
+        return new BulkItemResponse(itemId, DocWriteRequest.OpType.INDEX, failure);
+    }
+
+    private static List<BulkRequest> requests(List<DefaultElasticsearchOrmClient.BulkChunk> chunks) {
+        return chunks.stream().map(x -> x.request).collect(Collectors.toList());
+    }
+
+    private static IndexRequest index(String indexName, String id) {
+        return new IndexRequest(indexName).id(id).source("{\"id\":\"" + id + "\"}", XContentType.JSON);
+    }
+
+    private static DefaultElasticsearchOrmClient newClient(ElasticsearchOrmProperties properties) throws ReflectiveOperationException {
+        DefaultElasticsearchOrmClient client = new DefaultElasticsearchOrmClient();
+        setProperties(client, properties);
+        return client;
+    }
+
+    private static void setProperties(DefaultElasticsearchOrmClient client, ElasticsearchOrmProperties properties) throws ReflectiveOperationException {
+        Field field = DefaultElasticsearchOrmClient.class.getDeclaredField("properties");
+        field.setAccessible(true);
+        field.set(client, properties);
+    }
+
+}
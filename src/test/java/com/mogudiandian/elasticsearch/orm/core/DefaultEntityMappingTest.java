@@ -0,0 +1,190 @@
+package com.mogudiandian.elasticsearch.orm.core;
+
+import com.alibaba.fastjson.JSON;
+import com.mogudiandian.elasticsearch.orm.core.annotation.Index;
+import com.mogudiandian.elasticsearch.orm.core.annotation.LifecycleField;
+import com.mogudiandian.elasticsearch.orm.core.annotation.NestedField;
+import com.mogudiandian.elasticsearch.orm.core.annotation.SearchField;
+import com.mogudiandian.elasticsearch.orm.core.util.OrmUtils;
+import lombok.Getter;
+import lombok.Setter;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 直接编码、解码与Map转换一致的测试
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class DefaultEntityMappingTest {
+
+    @Index("test_entity")
+    @Getter
+    @Setter
+    public static class TestEntity implements BaseEntity {
+
+        private String id;
+
+        private Integer count;
+
+        private Long total;
+
+        private BigDecimal price;
+
+        private Boolean enabled;
+
+        private List<String> tags;
+
+        @SearchField(removeHtmlTags = true)
+        private String title;
+
+        @SearchField
+        private String content;
+
+        @LifecycleField(30)
+        private Date createTime;
+
+        @NestedField
+        private List<Item> items;
+
+        @Override
+        public String entityId() {
+            return id;
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class Item {
+
+        private String name;
+
+        private Integer quantity;
+    }
+
+    @BeforeClass
+    public static void init() {
+        OrmUtils.init(DefaultEntityMappingTest.class.getPackage().getName());
+    }
+
+    @Test
+    public void testToSourceSameAsConvert() throws IOException {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<>(TestEntity.class);
+        TestEntity entity = newEntity();
+
+        assertEquals(toMap(serialize(mapping.convert(entity))), toMap(mapping.toSource(entity)));
+    }
+
+    @Test
+    public void testToSourceWithNullProperties() throws IOException {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<>(TestEntity.class);
+        TestEntity entity = new TestEntity();
+        entity.setId("2");
+
+        assertEquals(toMap(serialize(mapping.convert(entity))), toMap(mapping.toSource(entity)));
+    }
+
+    @Test
+    public void testConvertBytesSameAsConvertMap() {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<>(TestEntity.class);
+        BytesReference source = mapping.toSource(newEntity());
+
+        TestEntity fromMap = mapping.convert(toMap(source));
+        TestEntity fromBytes = mapping.convert(source);
+
+        assertEquals(JSON.toJSONString(fromMap), JSON.toJSONString(fromBytes));
+        assertEquals("a b", fromBytes.getTitle());
+        assertEquals(2, fromBytes.getItems().size());
+    }
+
+    @Test
+    public void testConvertBytesIgnoresUnknownFields() {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<>(TestEntity.class);
+        BytesReference source = new BytesArray("{\"id\":\"3\",\"unknown\":{\"a\":[1,2]},\"count\":5}");
+
+        TestEntity entity = mapping.convert(source);
+        assertEquals("3", entity.getId());
+        assertEquals(Integer.valueOf(5), entity.getCount());
+        assertNull(entity.getTitle());
+    }
+
+    @Test
+    public void testOverriddenConvertEntityIsUsedForSource() {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<TestEntity>(TestEntity.class) {
+            @Override
+            public Map<String, Object> convert(TestEntity entity) {
+                Map<String, Object> map = super.convert(entity);
+                map.put("extra", "x");
+                return map;
+            }
+        };
+
+        assertEquals("x", toMap(mapping.toSource(newEntity())).get("extra"));
+    }
+
+    @Test
+    public void testOverriddenConvertMapIsUsedForBytes() {
+        DefaultEntityMapping<TestEntity> mapping = new DefaultEntityMapping<TestEntity>(TestEntity.class) {
+            @Override
+            public TestEntity convert(Map<String, Object> map) {
+                TestEntity entity = super.convert(map);
+                entity.setTitle("overridden");
+                return entity;
+            }
+        };
+
+        assertEquals("overridden", mapping.convert(mapping.toSource(newEntity())).getTitle());
+    }
+
+    private static TestEntity newEntity() {
+        Item item1 = new Item();
+        item1.setName("item1");
+        item1.setQuantity(1);
+        Item item2 = new Item();
+        item2.setName("item2");
+
+        TestEntity entity = new TestEntity();
+        entity.setId("1");
+        entity.setCount(10);
+        entity.setTotal(1L << 40);
+        entity.setPrice(new BigDecimal("12.34"));
+        entity.setEnabled(true);
+        entity.setTags(Arrays.asList("x", "y"));
+        entity.setTitle("<em>a</em> b");
+        entity.setContent("content");
+        entity.setCreateTime(new Date(1600000000000L));
+        entity.setItems(Arrays.asList(item1, item2));
+        return entity;
+    }
+
+    /**
+     * 与EntityMapping默认的toSource一致 先转换为Map再序列化
+     */
+    private static BytesReference serialize(Map<String, Object> map) throws IOException {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            return BytesReference.bytes(builder.map(map));
+        }
+    }
+
+    private static Map<String, Object> toMap(BytesReference source) {
+        return XContentHelper.convertToMap(source, false, XContentType.JSON).v2();
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.mogudiandian.elasticsearch.orm.core.request.sql;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 条件补全为查询语句的测试
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class SqlSearchRequestTest {
+
+    @Test
+    public void testConditionOnly() {
+        assertEquals("select * from user where age > 18", SqlSearchRequest.toSelect("where age > 18", "user"));
+    }
+
+    @Test
+    public void testLeadingHintsMovedAfterSelect() {
+        assertEquals("select /*! ROUTINGS(a,b)*/ /*! PREFERENCE(_local)*/ * from user where age > 18",
+                SqlSearchRequest.toSelect(" /*! ROUTINGS(a,b)*/ /*! PREFERENCE(_local)*/ where age > 18", "user"));
+    }
+
+    @Test
+    public void testLeadingSelect() {
+        assertEquals("select id, nick from user  where age > 18", SqlSearchRequest.toSelect("SELECT id, nick where age > 18", "user"));
+        assertEquals("select id from user  order by id", SqlSearchRequest.toSelect("select id order by id", "user"));
+        assertEquals("select id from user ", SqlSearchRequest.toSelect("select id", "user"));
+    }
+
+    @Test
+    public void testHintsAndSelect() {
+        assertEquals("select /*! ROUTINGS(a)*/ id from user  limit 10", SqlSearchRequest.toSelect("/*! ROUTINGS(a)*/ select id limit 10", "user"));
+    }
+
+    @Test
+    public void testSelectPrefixInCondition() {
+        assertEquals("select * from user where selected = 1", SqlSearchRequest.toSelect("where selected = 1", "user"));
+        assertEquals("select * from user selection = 1", SqlSearchRequest.toSelect("selection = 1", "user"));
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.mogudiandian.elasticsearch.orm.core.util;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 翻页游标的测试
+ *
+ * @author Joshua Sun
+ * @since 1.0.0
+ */
+public class CursorUtilsTest {
+
+    @Test
+    public void testRoundTrip() {
+        Object[] sortValues = {1600000000000L, "abc", 2.5, true};
+        assertArrayEquals(sortValues, CursorUtils.decode(CursorUtils.encode(sortValues)));
+    }
+
+    @Test
+    public void testCursorIsUrlSafe() {
+        String cursor = CursorUtils.encode(new Object[]{"??>>~~", "中文"});
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void testBigNumbersAreConverted() {
+        Object[] sortValues = CursorUtils.decode(CursorUtils.encode(new Object[]{new BigInteger("18446744073709551615"), 1.5e300}));
+        assertEquals(Long.class, sortValues[0].getClass());
+        assertEquals(Double.class, sortValues[1].getClass());
+        assertEquals(1.5e300, (Double) sortValues[1], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCursor() {
+        CursorUtils.decode("not a cursor");
+    }
+
+}